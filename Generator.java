@@ -0,0 +1,398 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+// Turns a compiled regex into a class of its own: a loop over the input with a switch on the state,
+// where each transition is a few comparisons on the char inlined into the code. It is loaded as a hidden class,
+// so the JIT compiles it like handwritten code, and it goes away with the last reference to it.
+// A big automaton would make a huge method, so past a state limit the table interpreter is used instead.
+public class Generator {
+	// Default limit on the states of a generated matcher
+	public static final int MAX_STATES = 512;
+	// Recently generated matchers, by pattern text
+	private static final Regex.LRUCache<String, Regex.Recognizer> patterns = new Regex.LRUCache<String, Regex.Recognizer>(256);
+	// Matchers generated for regexes built by hand, for as long as the regex is in use.
+	// Only matchers that do not refer to their regex are kept (not the lazy DFA), or the key could never be collected.
+	private static final WeakHashMap<Regex.Node, Regex.Recognizer> nodes = new WeakHashMap<Regex.Node, Regex.Recognizer>();
+	private static int generated;
+
+	public static Regex.Recognizer compile(String pattern) {
+		Regex.Recognizer recognizer;
+		synchronized (patterns) {
+			recognizer = patterns.get(pattern);
+		}
+		if (recognizer == null) {
+			recognizer = compile(Regex.parse(pattern));
+			synchronized (patterns) {
+				patterns.put(pattern, recognizer);
+			}
+		}
+		return recognizer;
+	}
+	public static Regex.Recognizer compile(Regex.Node regex) {
+		Regex.Recognizer recognizer;
+		synchronized (nodes) {
+			recognizer = nodes.get(regex);
+		}
+		if (recognizer == null) {
+			recognizer = compile(regex, MAX_STATES);
+			if (!(recognizer instanceof Regex.DFA))
+				synchronized (nodes) {
+					nodes.put(regex, recognizer);
+				}
+		}
+		return recognizer;
+	}
+	// Generate a matcher for regex if its minimal DFA has at most maxStates states.
+	// Otherwise, fall back on the minimal table, or on the lazy DFA if even building the table is too much.
+	public static Regex.Recognizer compile(Regex.Node regex, int maxStates) {
+		Regex.Table table;
+		try {
+			table = Regex.Table.of(new Regex.DFA(regex), 4 * maxStates);
+		} catch (IllegalStateException e) {
+			return Regex.compile(regex);
+		}
+		if (table.size() > maxStates)
+			return table;
+		byte[] bytes = generate(table);
+		if (bytes == null)
+			return table;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (Regex.Recognizer) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Cannot load generated matcher", e);
+		}
+	}
+
+	// Local variables of matches
+	private static final int STRING = 1, STATE = 2, INDEX = 3, LENGTH = 4, CHAR = 5;
+
+	// The class file of a Recognizer for table, or null if its matches method would be too big.
+	// Its matches method is:
+	//     int state = start, i = 0, n = string.length();
+	//     while (i < n) {
+	//         char c = string.charAt(i++);
+	//         switch (state) {
+	//         case s: if (c < x) { state = t; continue; } ... // binary search on the ranges of chars of each target
+	//         }
+	//     }
+	//     return state is accepting;
+	// A transition to the dead state returns false right away. Before returning, it adds the chars it read
+	// to Metrics.transitions.
+	static byte[] generate(Regex.Table table) {
+		ConstantPool pool = new ConstantPool();
+		int self;
+		synchronized (Generator.class) {
+			self = pool.type(pool.utf8("RegexMatcher" + (generated++)));
+		}
+		int object = pool.type(pool.utf8("java/lang/Object"));
+		int recognizer = pool.type(pool.utf8("Regex$Recognizer"));
+		int init = pool.utf8("<init>"), voidType = pool.utf8("()V");
+		int objectInit = pool.method(object, pool.nameAndType(init, voidType));
+		int matches = pool.utf8("matches"), matchesType = pool.utf8("(Ljava/lang/CharSequence;)Z");
+		int charSequence = pool.type(pool.utf8("java/lang/CharSequence"));
+		int length = pool.interfaceMethod(charSequence, pool.nameAndType(pool.utf8("length"), pool.utf8("()I")));
+		int charAt = pool.interfaceMethod(charSequence, pool.nameAndType(pool.utf8("charAt"), pool.utf8("(I)C")));
+		int code = pool.utf8("Code");
+		int transitions = pool.field(pool.type(pool.utf8("Regex$Metrics")),
+				pool.nameAndType(pool.utf8("transitions"), pool.utf8("Ljava/util/concurrent/atomic/LongAdder;")));
+		int add = pool.method(pool.type(pool.utf8("java/util/concurrent/atomic/LongAdder")),
+				pool.nameAndType(pool.utf8("add"), pool.utf8("(J)V")));
+
+		Assembler asm = new Assembler(pool, transitions, add);
+		int loop = asm.label(), end = asm.label();
+		asm.push(table.start);
+		asm.store(STATE);
+		asm.push(0);
+		asm.store(INDEX);
+		asm.op(0x19).u1(STRING); // aload
+		asm.invokeInterface(length, 1);
+		asm.store(LENGTH);
+		asm.mark(loop);
+		asm.load(INDEX);
+		asm.load(LENGTH);
+		asm.jump(0xa2, end); // if_icmpge
+		asm.op(0x19).u1(STRING); // aload
+		asm.load(INDEX);
+		asm.invokeInterface(charAt, 2);
+		asm.store(CHAR);
+		asm.op(0x84).u1(INDEX).u1(1); // iinc i 1
+		int[] cases = new int[table.states];
+		for (int s = 0; s < cases.length; s++)
+			cases[s] = asm.label();
+		asm.load(STATE);
+		asm.tableSwitch(end, cases);
+		int[] cuts = table.alphabet.cuts;
+		for (int s = 0; s < table.states; s++) {
+			asm.mark(cases[s]);
+			if (s == table.dead) {
+				asm.count();
+				asm.push(0);
+				asm.op(0xac); // ireturn
+				continue;
+			}
+			// Merge neighboring classes going to the same state into one range
+			ArrayList<int[]> ranges = new ArrayList<int[]>();
+			for (int c = 0; c < table.classes; c++) {
+				int target = table.target(s, c);
+				if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == target)
+					continue;
+				ranges.add(new int[] { cuts[c], target });
+			}
+			branch(asm, table, s, ranges, 0, ranges.size() - 1, loop);
+		}
+		asm.mark(end);
+		asm.count();
+		ArrayList<Integer> accepting = new ArrayList<Integer>();
+		for (int s = 0; s < table.states; s++)
+			if (table.accepts(s))
+				accepting.add(s);
+		int yes = asm.label(), no = asm.label();
+		asm.load(STATE);
+		asm.lookupSwitch(no, accepting, yes);
+		asm.mark(yes);
+		asm.push(1);
+		asm.op(0xac);
+		asm.mark(no);
+		asm.push(0);
+		asm.op(0xac);
+		byte[] bytecode = asm.assemble();
+		if (bytecode == null)
+			return null;
+
+		ByteWriter out = new ByteWriter();
+		// Version 49 (Java 5) class files are verified without stack map frames, which keeps this simple
+		out.u4(0xCAFEBABE).u2(0).u2(49);
+		pool.write(out);
+		out.u2(0x0001 | 0x0010 | 0x0020); // public final super
+		out.u2(self).u2(object);
+		out.u2(1).u2(recognizer);
+		out.u2(0); // fields
+		out.u2(2); // methods
+		// public <init>() { super(); }
+		out.u2(0x0001).u2(init).u2(voidType).u2(1);
+		out.u2(code).u4(12 + 5).u2(1).u2(1).u4(5);
+		out.u1(0x2a).u1(0xb7).u2(objectInit).u1(0xb1); // aload_0, invokespecial, return
+		out.u2(0).u2(0);
+		// public boolean matches(CharSequence)
+		out.u2(0x0001).u2(matches).u2(matchesType).u2(1);
+		out.u2(code).u4(12 + bytecode.length).u2(4).u2(6).u4(bytecode.length);
+		out.bytes(bytecode, bytecode.length);
+		out.u2(0).u2(0);
+		out.u2(0); // attributes
+		return out.toByteArray();
+	}
+	// Go to the target of the range of char the local CHAR is in, among ranges[lo..hi], by binary search
+	private static void branch(Assembler asm, Regex.Table table, int state, ArrayList<int[]> ranges, int lo, int hi, int loop) {
+		if (lo == hi) {
+			int target = ranges.get(lo)[1];
+			if (target == table.dead) {
+				asm.count();
+				asm.push(0);
+				asm.op(0xac);
+				return;
+			}
+			if (target != state) {
+				asm.push(target);
+				asm.store(STATE);
+			}
+			asm.jump(0xa7, loop); // goto
+			return;
+		}
+		int middle = (lo + hi + 1) >>> 1;
+		int right = asm.label();
+		asm.load(CHAR);
+		asm.push(ranges.get(middle)[0]);
+		asm.jump(0xa2, right); // if_icmpge
+		branch(asm, table, state, ranges, lo, middle - 1, loop);
+		asm.mark(right);
+		branch(asm, table, state, ranges, middle, hi, loop);
+	}
+
+	private static class ByteWriter {
+		byte[] bytes = new byte[256];
+		int length;
+		ByteWriter u1(int b) {
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, length * 2);
+			bytes[length++] = (byte) b;
+			return this;
+		}
+		ByteWriter u2(int s) {
+			return u1(s >>> 8).u1(s);
+		}
+		ByteWriter u4(int i) {
+			return u2(i >>> 16).u2(i);
+		}
+		ByteWriter bytes(byte[] b, int n) {
+			for (int i = 0; i < n; i++)
+				u1(b[i]);
+			return this;
+		}
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+	private static class ConstantPool {
+		private final ArrayList<byte[]> entries = new ArrayList<byte[]>();
+		private final HashMap<Integer, Integer> ints = new HashMap<Integer, Integer>();
+		private int add(ByteWriter entry) {
+			entries.add(entry.toByteArray());
+			return entries.size();
+		}
+		int utf8(String s) {
+			ByteWriter entry = new ByteWriter().u1(1).u2(s.length());
+			for (int i = 0; i < s.length(); i++)
+				entry.u1(s.charAt(i));
+			return add(entry);
+		}
+		int type(int name) {
+			return add(new ByteWriter().u1(7).u2(name));
+		}
+		int nameAndType(int name, int type) {
+			return add(new ByteWriter().u1(12).u2(name).u2(type));
+		}
+		int method(int owner, int nameAndType) {
+			return add(new ByteWriter().u1(10).u2(owner).u2(nameAndType));
+		}
+		int field(int owner, int nameAndType) {
+			return add(new ByteWriter().u1(9).u2(owner).u2(nameAndType));
+		}
+		int interfaceMethod(int owner, int nameAndType) {
+			return add(new ByteWriter().u1(11).u2(owner).u2(nameAndType));
+		}
+		int integer(int value) {
+			Integer index = ints.get(value);
+			if (index == null) {
+				index = add(new ByteWriter().u1(3).u4(value));
+				ints.put(value, index);
+			}
+			return index;
+		}
+		void write(ByteWriter out) {
+			out.u2(entries.size() + 1);
+			for (byte[] entry : entries)
+				out.bytes(entry, entry.length);
+		}
+	}
+	// Bytecode of one method, with labels for jumps
+	private static class Assembler {
+		private final ConstantPool pool;
+		// Metrics.transitions, and LongAdder.add
+		private final int transitions, add;
+		private final ByteWriter code = new ByteWriter();
+		private final ArrayList<Integer> labels = new ArrayList<Integer>();
+		// Offsets to patch: {where, instruction address, label, size}
+		private final ArrayList<int[]> fixups = new ArrayList<int[]>();
+		Assembler(ConstantPool pool, int transitions, int add) {
+			this.pool = pool;
+			this.transitions = transitions;
+			this.add = add;
+		}
+		int label() {
+			labels.add(-1);
+			return labels.size() - 1;
+		}
+		void mark(int label) {
+			labels.set(label, code.length);
+		}
+		Assembler op(int opcode) {
+			code.u1(opcode);
+			return this;
+		}
+		Assembler u1(int b) {
+			code.u1(b);
+			return this;
+		}
+		void push(int value) {
+			if (value >= -1 && value <= 5)
+				code.u1(0x03 + value); // iconst
+			else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+				code.u1(0x10).u1(value); // bipush
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+				code.u1(0x11).u2(value); // sipush
+			else
+				code.u1(0x13).u2(pool.integer(value)); // ldc_w
+		}
+		void load(int local) {
+			code.u1(0x15).u1(local); // iload
+		}
+		void store(int local) {
+			code.u1(0x36).u1(local); // istore
+		}
+		// Metrics.transitions.add(i)
+		void count() {
+			code.u1(0xb2).u2(transitions); // getstatic
+			load(INDEX);
+			code.u1(0x85); // i2l
+			code.u1(0xb6).u2(add); // invokevirtual
+		}
+		void invokeInterface(int method, int arguments) {
+			code.u1(0xb9).u2(method).u1(arguments).u1(0);
+		}
+		void jump(int opcode, int label) {
+			int address = code.length;
+			code.u1(opcode);
+			fixups.add(new int[] { code.length, address, label, 2 });
+			code.u2(0);
+		}
+		void tableSwitch(int defaultLabel, int[] cases) {
+			int address = code.length;
+			code.u1(0xaa);
+			while (code.length % 4 != 0)
+				code.u1(0);
+			fixups.add(new int[] { code.length, address, defaultLabel, 4 });
+			code.u4(0).u4(0).u4(cases.length - 1);
+			for (int label : cases) {
+				fixups.add(new int[] { code.length, address, label, 4 });
+				code.u4(0);
+			}
+		}
+		// Go to label for each of keys (sorted), and to defaultLabel otherwise
+		void lookupSwitch(int defaultLabel, ArrayList<Integer> keys, int label) {
+			int address = code.length;
+			code.u1(0xab);
+			while (code.length % 4 != 0)
+				code.u1(0);
+			fixups.add(new int[] { code.length, address, defaultLabel, 4 });
+			code.u4(0).u4(keys.size());
+			for (int key : keys) {
+				code.u4(key);
+				fixups.add(new int[] { code.length, address, label, 4 });
+				code.u4(0);
+			}
+		}
+		// The code with every jump patched, or null if the method is too big for the JVM
+		byte[] assemble() {
+			if (code.length > 65535)
+				return null;
+			for (int[] fixup : fixups) {
+				int offset = labels.get(fixup[2]) - fixup[1];
+				if (fixup[3] == 2) {
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+						return null;
+					code.bytes[fixup[0]] = (byte) (offset >>> 8);
+					code.bytes[fixup[0] + 1] = (byte) offset;
+				} else {
+					for (int i = 0; i < 4; i++)
+						code.bytes[fixup[0] + i] = (byte) (offset >>> (24 - 8 * i));
+				}
+			}
+			return code.toByteArray();
+		}
+	}
+
+	// java Generator pattern string...: match with a generated class
+	public static void main(String[] args) {
+		Regex.Recognizer recognizer = compile(args[0]);
+		System.out.println(recognizer.getClass().getName());
+		for (int i = 1; i < args.length; i++)
+			System.out.println(args[i] + ": " + recognizer.matches(args[i]));
+	}
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Line by line search of big files on disk, on the Regex engine, like grep.
+// The file is mapped into memory and its bytes are never copied: lines are found by looking for '\n' in the
+// mapped buffer, and each line is run through the UTF-8 ByteDFA right where it lies, so no String is ever made.
+// A line matches if some part of it matches the pattern (the regex is run as .*(regex).*), or with wholeLines,
+// if all of it does. The file is cut at line boundaries into slices that are scanned in parallel with fork/join.
+public class Grep {
+	// Slices smaller than this (in bytes) are not split any further
+	private static final int GRAIN = 1 << 20;
+
+	// The lines found in a slice of the input, or in all of it once the slices are put together.
+	// Matching lines are kept in flat arrays (not one object each), and only when they are collected.
+	public static class Result {
+		private final boolean collect;
+		// Lines in the slice, and how many of them match
+		private long lines, count;
+		// Per matching line: its number counting from 0 at the start of the slice, its offset in bytes, its length in bytes
+		private long[] numbers, offsets;
+		private int[] lengths;
+		Result(boolean collect) {
+			this.collect = collect;
+			numbers = new long[collect ? 16 : 0];
+			offsets = new long[numbers.length];
+			lengths = new int[numbers.length];
+		}
+		private void add(long number, long offset, int length) {
+			if (collect) {
+				int i = (int) count;
+				if (i == numbers.length) {
+					numbers = Arrays.copyOf(numbers, i * 2);
+					offsets = Arrays.copyOf(offsets, i * 2);
+					lengths = Arrays.copyOf(lengths, i * 2);
+				}
+				numbers[i] = number;
+				offsets[i] = offset;
+				lengths[i] = length;
+			}
+			count++;
+		}
+		// This slice followed by the next one
+		private Result append(Result next) {
+			if (collect)
+				for (int i = 0; i < next.count; i++)
+					add(lines + next.numbers[i], next.offsets[i], next.lengths[i]);
+			else
+				count += next.count;
+			lines += next.lines;
+			return this;
+		}
+		// Number of lines read
+		public long lines() {
+			return lines;
+		}
+		// Number of matching lines
+		public long count() {
+			return count;
+		}
+		// The line number of matching line i, from 1 (as grep -n)
+		public long line(int i) {
+			return numbers[i] + 1;
+		}
+		// Offset in bytes of the first byte of matching line i
+		public long offset(int i) {
+			return offsets[i];
+		}
+		// Length in bytes of matching line i, without its '\n'
+		public int length(int i) {
+			return lengths[i];
+		}
+	}
+
+	private final Regex.ByteDFA bytes;
+	private final ForkJoinPool pool;
+	private final boolean collect;
+
+	// Find the lines that contain a match of pattern
+	public Grep(String pattern) {
+		this(Regex.parse(pattern), false, true, ForkJoinPool.commonPool());
+	}
+	// With collect false, only the matching lines are counted, their offsets are not kept
+	public Grep(Regex.Node regex, boolean wholeLines, boolean collect, ForkJoinPool pool) {
+		if (!wholeLines) {
+			Regex.Node any = Regex.Star.getInstance(Regex.CharClass.any());
+			regex = Regex.seq(any, regex, any);
+		}
+		this.bytes = Regex.compile(regex).bytes();
+		this.pool = pool;
+		this.collect = collect;
+	}
+	// Scan a file, mapped a region at a time. Regions end at a line boundary, so a line must fit in one (2GB).
+	public Result scan(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			Result result = new Result(collect);
+			for (long position = 0; position < size;) {
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(Integer.MAX_VALUE, size - position));
+				int end = region.limit();
+				if (position + end < size) {
+					// Leave the last, incomplete line to the next region
+					while (end > 0 && region.get(end - 1) != '\n')
+						end--;
+					if (end == 0)
+						throw new IOException("Line longer than " + Integer.MAX_VALUE + " bytes at offset " + position);
+				}
+				result.append(pool.invoke(new Slice(region, position, 0, end)));
+				position += end;
+			}
+			return result;
+		}
+	}
+	// Scan the bytes remaining in a buffer. Offsets are indexes in the buffer.
+	public Result scan(ByteBuffer buffer) {
+		return pool.invoke(new Slice(buffer, 0, buffer.position(), buffer.limit()));
+	}
+
+	// Lines buffer[from, to), where from is the start of a line, and so is to (or it is the end of the input)
+	private class Slice extends RecursiveTask<Result> {
+		private static final long serialVersionUID = 1L;
+		private final ByteBuffer buffer;
+		// Offset in the file of buffer index 0
+		private final long base;
+		private final int from, to;
+		Slice(ByteBuffer buffer, long base, int from, int to) {
+			this.buffer = buffer;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+		}
+		@Override
+		protected Result compute() {
+			if (to - from > GRAIN) {
+				// Cut after the line that spans the middle
+				int middle = from + (to - from) / 2;
+				while (middle < to && buffer.get(middle++) != '\n')
+					;
+				if (middle < to) {
+					Slice left = new Slice(buffer, base, from, middle);
+					left.fork();
+					Result right = new Slice(buffer, base, middle, to).compute();
+					return left.join().append(right);
+				}
+			}
+			Result result = new Result(collect);
+			for (int start = from; start < to;) {
+				int end = start;
+				while (end < to && buffer.get(end) != '\n')
+					end++;
+				if (bytes.accepts(bytes.run(bytes.start, buffer, start, end)))
+					result.add(result.lines, base + start, end - start);
+				result.lines++;
+				start = end + 1;
+			}
+			return result;
+		}
+	}
+
+	// java Grep [-c] [-x] pattern file: print the matching lines of file, each after its line number and byte offset,
+	// or with -c, only how many there are. With -x, the pattern must match the whole line.
+	public static void main(String[] args) throws IOException {
+		boolean count = false, wholeLines = false;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; i++) {
+			if (args[i].equals("-c"))
+				count = true;
+			else if (args[i].equals("-x"))
+				wholeLines = true;
+			else
+				break;
+		}
+		if (args.length - i != 2) {
+			System.err.println("usage: java Grep [-c] [-x] pattern file");
+			System.exit(2);
+		}
+		Grep grep = new Grep(Regex.parse(args[i]), wholeLines, !count, ForkJoinPool.commonPool());
+		Path file = Path.of(args[i + 1]);
+		long then = System.nanoTime();
+		Result result = grep.scan(file);
+		long nanos = System.nanoTime() - then;
+		if (count)
+			System.out.println(result.count());
+		else
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				// Only the matching lines are read again, to print them
+				for (int j = 0; j < result.count(); j++) {
+					ByteBuffer line = ByteBuffer.allocate(result.length(j));
+					while (line.hasRemaining() && channel.read(line, result.offset(j) + line.position()) >= 0)
+						;
+					line.flip();
+					System.out.println(result.line(j) + ":" + result.offset(j) + ":" + StandardCharsets.UTF_8.decode(line));
+				}
+			}
+		System.err.println(result.count() + " of " + result.lines() + " lines, "
+				+ Math.round(file.toFile().length() / 1e6 / (nanos / 1e9)) + " MB/s");
+	}
+}
@@ -0,0 +1,272 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Longest match lexer built on Regex derivatives.
+// Every rule is run at once: a state of the combined automaton is the vector of the derivatives of all the rules,
+// so it knows which rules are still alive and which ones accept. One forward pass finds the longest token,
+// and when several rules match that token, the one listed first wins.
+// A Lexer can be shared by many threads, each scanning with its own Scanner: the states are built and published
+// the way Regex.DFA does it, and the counters are LongAdders. A Scanner is for one thread only.
+public class Lexer {
+	private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+	// A token name and the regex it matches
+	public static class Rule {
+		final String name;
+		final Regex.Node regex;
+		public Rule(String name, Regex.Node regex) {
+			this.name = name;
+			this.regex = regex;
+		}
+		public Rule(String name, String pattern) {
+			this(name, Regex.parse(pattern));
+		}
+	}
+	public static class Token {
+		public final String name;
+		// Index of the rule that matched
+		public final int rule;
+		// Offset of the first char in the input
+		public final long offset;
+		public final String text;
+		Token(String name, int rule, long offset, String text) {
+			this.name = name;
+			this.rule = rule;
+			this.offset = offset;
+			this.text = text;
+		}
+		@Override
+		public String toString() {
+			return name + " " + text;
+		}
+	}
+	// A combined state: one derivative per rule, compared by identity since nodes are interned
+	private static class Vector {
+		final Regex.Node[] nodes;
+		Vector(Regex.Node[] nodes) {
+			this.nodes = nodes;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof Vector) && Arrays.equals(nodes, ((Vector) o).nodes);
+		}
+		@Override
+		public int hashCode() {
+			int hash = 1;
+			for (Regex.Node node : nodes)
+				hash = 31 * hash + System.identityHashCode(node);
+			return hash;
+		}
+	}
+
+	private final String[] names;
+	private final Regex.Alphabet alphabet;
+	// State number of each vector seen so far (guarded by this)
+	private final HashMap<Vector, Integer> ids = new HashMap<Vector, Integer>();
+	private volatile States states = new States(16);
+	private volatile int count;
+	private final int start;
+	// Throughput counters, for all the scanners of this lexer
+	private final LongAdder tokens = new LongAdder(), chars = new LongAdder(), nanos = new LongAdder();
+
+	// The states, as in Regex.DFA: when full, a bigger copy replaces it, and the rows are shared by the copies
+	private static class States {
+		final Vector[] vectors;
+		// First rule accepting in each state, or -1
+		final int[] accept;
+		// No rule is alive any more
+		final boolean[] dead;
+		// Transitions, one row per state with one entry per char class. -1 means not computed yet.
+		final int[][] next;
+		States(int capacity) {
+			vectors = new Vector[capacity];
+			accept = new int[capacity];
+			dead = new boolean[capacity];
+			next = new int[capacity][];
+		}
+		States(States old, int capacity) {
+			vectors = Arrays.copyOf(old.vectors, capacity);
+			accept = Arrays.copyOf(old.accept, capacity);
+			dead = Arrays.copyOf(old.dead, capacity);
+			next = Arrays.copyOf(old.next, capacity);
+		}
+	}
+
+	public Lexer(List<Rule> rules) {
+		names = new String[rules.size()];
+		Regex.Node[] regexes = new Regex.Node[rules.size()];
+		for (int i = 0; i < regexes.length; i++) {
+			names[i] = rules.get(i).name;
+			regexes[i] = rules.get(i).regex;
+		}
+		alphabet = new Regex.Alphabet(regexes);
+		start = state(regexes);
+	}
+	// Look up (or add) the state for a vector of derivatives
+	private synchronized int state(Regex.Node[] nodes) {
+		Vector vector = new Vector(nodes);
+		Integer id = ids.get(vector);
+		if (id != null)
+			return id;
+		States states = this.states;
+		if (count == states.vectors.length)
+			states = new States(states, count * 2);
+		int rule = -1;
+		boolean alive = false;
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			if (nodes[i].nullable)
+				rule = i;
+			if (nodes[i] != Regex.EmptySet.getInstance())
+				alive = true;
+		}
+		int[] row = new int[alphabet.size()];
+		Arrays.fill(row, -1);
+		states.vectors[count] = vector;
+		states.accept[count] = rule;
+		states.dead[count] = !alive;
+		states.next[count] = row;
+		this.states = states;
+		ids.put(vector, count);
+		return count++;
+	}
+	// Two threads missing the same transition both derive it, and get the same state
+	private int step(int state, char c) {
+		int charClass = alphabet.classOf(c);
+		States states = this.states;
+		int target = (int) ENTRY.getAcquire(states.next[state], charClass);
+		if (target >= 0)
+			return target;
+		// Derive every rule that is still alive (a dead one stays Ø)
+		char representative = alphabet.representative(charClass);
+		Regex.Node[] nodes = states.vectors[state].nodes.clone();
+		for (int i = 0; i < nodes.length; i++)
+			if (nodes[i] != Regex.EmptySet.getInstance())
+				nodes[i] = Regex.Derivative.derive(nodes[i], representative);
+		target = state(nodes);
+		ENTRY.setRelease(states.next[state], charClass, target);
+		return target;
+	}
+	// Number of combined states built so far
+	public int size() {
+		return count;
+	}
+	public long tokens() {
+		return tokens.sum();
+	}
+	public long chars() {
+		return chars.sum();
+	}
+	// Tokens per second spent scanning so far (by all the scanners, so with several threads it is their total)
+	public double throughput() {
+		long nanos = this.nanos.sum();
+		return (nanos == 0) ? 0 : tokens() * 1e9 / nanos;
+	}
+	public Scanner scan(Reader reader) {
+		return new Scanner(reader);
+	}
+	public Scanner scan(CharSequence input) {
+		return new Scanner(new StringReader(input.toString()));
+	}
+
+	// Reads tokens off a stream. Only the chars of the token being scanned are buffered.
+	// A Scanner is not thread safe, but scanners of the same Lexer can run on different threads.
+	public class Scanner {
+		private final Reader reader;
+		private char[] buffer = new char[8192];
+		// buffer[begin..end) is read but not tokenized yet
+		private int begin, end;
+		// Offset of buffer[begin] in the input
+		private long offset;
+		private boolean eof;
+
+		Scanner(Reader reader) {
+			this.reader = reader;
+		}
+		// The next token, or null at the end of the input
+		public Token next() throws IOException {
+			long then = System.nanoTime();
+			if (begin == end && !fill())
+				return null;
+			// Longest match: run until every rule is dead, remembering the last accepting position
+			int state = start, length = 0, rule = -1, matched = 0;
+			// The states are kept in a local until a transition leads past them
+			States states = Lexer.this.states;
+			while (true) {
+				if (begin + length == end && !fill())
+					break;
+				state = step(state, buffer[begin + length++]);
+				if (state >= states.accept.length)
+					states = Lexer.this.states;
+				if (states.dead[state])
+					break;
+				if (states.accept[state] >= 0) {
+					rule = states.accept[state];
+					matched = length;
+				}
+			}
+			if (rule < 0)
+				throw new IllegalArgumentException("No rule matches at offset " + offset);
+			Token token = new Token(names[rule], rule, offset, new String(buffer, begin, matched));
+			begin += matched;
+			offset += matched;
+			tokens.increment();
+			chars.add(matched);
+			nanos.add(System.nanoTime() - then);
+			return token;
+		}
+		// Read more input after end, first moving the current token to the front of the buffer (or growing it)
+		private boolean fill() throws IOException {
+			if (eof)
+				return false;
+			if (begin > 0) {
+				System.arraycopy(buffer, begin, buffer, 0, end - begin);
+				end -= begin;
+				begin = 0;
+			}
+			if (end == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			int read = reader.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				eof = true;
+				return false;
+			}
+			end += read;
+			return true;
+		}
+	}
+
+	// java Lexer file: tokenize a Java-like source file, and report the token counts and throughput
+	public static void main(String[] args) throws IOException {
+		Lexer lexer = new Lexer(Arrays.asList(
+				new Rule("keyword", "if|else|while|for|return|class|public|static|void|int|new"),
+				new Rule("identifier", "[a-zA-Z_][a-zA-Z_0-9]*"),
+				new Rule("number", "[0-9]+(\\.[0-9]+)?"),
+				new Rule("string", "\"([^\"\\\\\\n]|\\\\.)*\""),
+				new Rule("comment", "//[^\\n]*"),
+				new Rule("whitespace", "\\s+"),
+				new Rule("operator", "[-+*/%=<>!&|^~?:]+"),
+				new Rule("punctuation", "[(){}\\[\\];,.@]"),
+				new Rule("other", ".")));
+		Reader reader = new FileReader(args[0]);
+		try {
+			Scanner scanner = lexer.scan(reader);
+			int[] counts = new int[lexer.names.length];
+			Token token;
+			while ((token = scanner.next()) != null)
+				counts[token.rule]++;
+			for (int i = 0; i < counts.length; i++)
+				System.out.println(lexer.names[i] + ": " + counts[i]);
+		} finally {
+			reader.close();
+		}
+		System.out.println(lexer.tokens() + " tokens, " + lexer.chars() + " chars, " + lexer.size() + " states, "
+				+ Math.round(lexer.throughput()) + " tokens/s");
+	}
+}
@@ -1,18 +1,96 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
 
 public class Regex {
-	public interface Node {
-		public <T> T accept(Visitor<T> visitor);
+	// Every node gets a serial number when it is created. Since nodes are interned, the number
+	// identifies a node, and it gives the alternatives of an Or a canonical order.
+	// It is a long, so it never wraps around: nodes come and go all the time, and no two may ever share a number.
+	// Whether the node matches the empty string is computed once, when it is constructed,
+	// and so is its size: the number of nodes in its tree, counting a shared subtree each time it is used
+	// (up to Integer.MAX_VALUE).
+	public static abstract class Node {
+		private static final AtomicLong serial = new AtomicLong();
+		final long id = serial.getAndIncrement();
+		final boolean nullable;
+		final int size;
+		Node(boolean nullable) {
+			this(nullable, 1);
+		}
+		Node(boolean nullable, int size) {
+			this.nullable = nullable;
+			this.size = size;
+		}
+		// Size of a node with these children
+		static int size(Node a, Node b) {
+			return (int) Math.min(Integer.MAX_VALUE, 1L + a.size + b.size);
+		}
+		public abstract <T> T accept(Visitor<T> visitor);
 	}
 	public interface Visitor<T> {
 		T visit(EmptySet node);
 		T visit(EmptyString node);
 		T visit(Symbol node);
+		T visit(Literal node);
+		T visit(CharClass node);
 		T visit(Star node);
+		T visit(Repeat node);
 		T visit(Sequence node);
 		T visit(Or node);
-                T visit(SequenceChild node);       
-                T visit(OrChild node);  
+		T visit(And node);
+		T visit(Not node);
+		T visit(Group node);
 	}
 	// This Printer class implements Visitor class for string data type. Whenever any Node object (or its child object) is passed, this visitor shall process it
 	public static class Printer implements Visitor<String> {
@@ -32,11 +110,27 @@ public class Regex {
 			return ""+node.symbol;
 		}
 
+		@Override
+		public String visit(Literal node) {
+			return node.text.substring(node.offset);
+		}
+
+		@Override
+		public String visit(CharClass node) {
+			return node.ranges.toString();
+		}
+
 		@Override
 		public String visit(Star node) {
 			return "(" + node.child.accept(this) + ")*";
 		}
 
+		@Override
+		public String visit(Repeat node) {
+			String counts = (node.min == node.max) ? "" + node.min : node.min + "," + ((node.max == Repeat.UNBOUNDED) ? "" : "" + node.max);
+			return "(" + node.child.accept(this) + "){" + counts + "}";
+		}
+
 		@Override
 		public String visit(Sequence node) {
 			// TODO Auto-generated method stub
@@ -45,25 +139,42 @@ public class Regex {
 
 		@Override
 		public String visit(Or node) {
-			return node.orChild.a.accept(this) + '|' + node.orChild.b.accept(this);
+			// Along the chain rather than down it, as an Or of many alternatives is as deep as it is wide
+			StringBuilder builder = new StringBuilder();
+			Node rest = node;
+			while (rest instanceof Or) {
+				builder.append(((Or) rest).orChild.a.accept(this)).append('|');
+				rest = ((Or) rest).orChild.b;
+			}
+			return builder.append(rest.accept(this)).toString();
+		}
+
+		@Override
+		public String visit(And node) {
+			StringBuilder builder = new StringBuilder();
+			for (Node conjunct : And.conjuncts(node))
+				builder.append(builder.length() == 0 ? "" : "&").append(conjunct.accept(this));
+			return builder.toString();
 		}
-                
-                @Override
-		public String visit(SequenceChild node) {
-			return node.a.accept(this) + '|' + node.b.accept(this);
+
+		@Override
+		public String visit(Not node) {
+			return "~(" + node.child.accept(this) + ")";
 		}
-                
-                @Override
-		public String visit(OrChild node) {
-			return node.a.accept(this) + '|' + node.b.accept(this);
+
+		@Override
+		public String visit(Group node) {
+			return "(" + node.child.accept(this) + ")";
 		}
 
 	}
 	
 	// EmptySet is Singleton class. This class is Static and its member emptySet is also static so only one copy shall be created per class.
-	public static class EmptySet implements Node {
+	public static class EmptySet extends Node {
 		private static EmptySet emptySet = new EmptySet();
-		private EmptySet() {}
+		private EmptySet() {
+			super(false);
+		}
 		public static EmptySet getInstance() {
 			return emptySet;
 		}
@@ -74,62 +185,457 @@ public class Regex {
 	}
 	// Matches "" Accept the end of a string
 	// EmptyString is Singleton class. Since it doesn't contains any data member only making class static will result in Singleton
-	public static class EmptyString implements Node {
+	public static class EmptyString extends Node {
                 private static EmptyString emptyString = new EmptyString();
 		public static EmptyString getInstance() {
 			return emptyString;
 		}
-		private EmptyString() {}
+		private EmptyString() {
+			super(true);
+		}
 		@Override
 		public <T> T accept(Visitor<T> visitor) {
 			return visitor.visit(this);
 		}
 	}
+	// Flyweight map for Symbol, Star, Sequence, Or and Group, keyed by two longs (such as the ids of the children).
+	// Node ids are never reused, so equal keys mean the same children, and a lookup compares numbers only:
+	// it allocates nothing. The table is open addressed, with linear probing.
+	// The value (the interned node) is only weakly referenced, so once nothing else uses a node, it is
+	// garbage collected instead of piling up forever; its slot is reclaimed when the table is rehashed.
+	// Safe to use from many threads: the keys are spread over stripes, each with its own lock,
+	// so threads interning different nodes rarely wait for each other.
+	public static class InternTable<V> {
+		private static final int STRIPES = 64;
+		private final Stripe<V>[] stripes;
+		private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+		@SuppressWarnings("unchecked")
+		public InternTable() {
+			stripes = (Stripe<V>[]) new Stripe<?>[STRIPES];
+			for (int i = 0; i < STRIPES; i++)
+				stripes[i] = new Stripe<V>();
+		}
+		private static class Stripe<V> {
+			long[] as = new long[16], bs = new long[16];
+			WeakReference<V>[] values = newValues(16);
+			// Slots in use, including the ones whose node was collected
+			int used;
+			@SuppressWarnings("unchecked")
+			static <V> WeakReference<V>[] newValues(int capacity) {
+				return (WeakReference<V>[]) new WeakReference<?>[capacity];
+			}
+			// The slot of key, or the empty slot where it would go
+			int slot(long a, long b, int hash) {
+				int mask = values.length - 1;
+				int i = hash & mask;
+				while (values[i] != null && (as[i] != a || bs[i] != b))
+					i = (i + 1) & mask;
+				return i;
+			}
+			void put(long a, long b, int hash, V value) {
+				int i = slot(a, b, hash);
+				if (values[i] == null) {
+					if (2 * (used + 1) > values.length) {
+						rehash();
+						i = slot(a, b, hash);
+					}
+					used++;
+				}
+				as[i] = a;
+				bs[i] = b;
+				values[i] = new WeakReference<V>(value);
+			}
+			// Drop the collected nodes, and grow if it is still more than a quarter full
+			private void rehash() {
+				long[] oldAs = as, oldBs = bs;
+				WeakReference<V>[] oldValues = values;
+				int live = 0;
+				for (WeakReference<V> ref : oldValues)
+					if (ref != null && ref.get() != null)
+						live++;
+				int capacity = (4 * (live + 1) > oldValues.length) ? 2 * oldValues.length : oldValues.length;
+				as = new long[capacity];
+				bs = new long[capacity];
+				values = newValues(capacity);
+				used = 0;
+				for (int i = 0; i < oldValues.length; i++) {
+					if (oldValues[i] == null || oldValues[i].get() == null)
+						continue;
+					int j = slot(oldAs[i], oldBs[i], hash(oldAs[i], oldBs[i]));
+					as[j] = oldAs[i];
+					bs[j] = oldBs[i];
+					values[j] = oldValues[i];
+					used++;
+				}
+			}
+		}
+		private static int hash(long a, long b) {
+			long mixed = a * 0x9E3779B97F4A7C15L + b;
+			int hash = (int) (mixed ^ (mixed >>> 32));
+			return hash ^ (hash >>> 16);
+		}
+		private Stripe<V> stripe(int hash) {
+			return stripes[(hash >>> 26) & (STRIPES - 1)];
+		}
+		// The interned value for (a, b), or null if there is none (any more)
+		V get(long a, long b) {
+			int hash = hash(a, b);
+			Stripe<V> stripe = stripe(hash);
+			V value = null;
+			synchronized (stripe) {
+				WeakReference<V> ref = stripe.values[stripe.slot(a, b, hash)];
+				if (ref != null)
+					value = ref.get();
+			}
+			if (value != null)
+				hits.increment();
+			else
+				misses.increment();
+			return value;
+		}
+		// Intern value for (a, b), unless another thread got there first: the value interned is returned
+		V putIfAbsent(long a, long b, V value) {
+			int hash = hash(a, b);
+			Stripe<V> stripe = stripe(hash);
+			synchronized (stripe) {
+				WeakReference<V> ref = stripe.values[stripe.slot(a, b, hash)];
+				V old = (ref == null) ? null : ref.get();
+				if (old != null)
+					return old;
+				stripe.put(a, b, hash, value);
+				return value;
+			}
+		}
+		// Number of entries (includes nodes collected but not yet purged)
+		public int size() {
+			int size = 0;
+			for (Stripe<V> stripe : stripes)
+				synchronized (stripe) {
+					size += stripe.used;
+				}
+			return size;
+		}
+		public long hits() {
+			return hits.sum();
+		}
+		public long misses() {
+			return misses.sum();
+		}
+		public double hitRate() {
+			long hits = hits(), misses = misses();
+			long total = hits + misses;
+			return (total == 0) ? 0 : (double) hits / total;
+		}
+		@Override
+		public String toString() {
+			return String.format("size %d, hit rate %.1f%%", size(), 100 * hitRate());
+		}
+	}
+	// Flyweight map for the nodes keyed by their content rather than by ids: CharClass by its Ranges, Literal by its text.
+	// The value (the interned node) is only weakly referenced, and the key is owned by the value,
+	// so once nothing else uses a node, both are garbage collected.
+	// Safe to use from many threads: as in InternTable, the keys are spread over stripes by their hash,
+	// each with its own lock, so the derivatives that merge sets of chars do not all wait on one lock.
+	static class ContentTable<K, V> {
+		private static final int STRIPES = 64;
+		private final WeakHashMap<K, WeakReference<V>>[] stripes;
+		@SuppressWarnings("unchecked")
+		ContentTable() {
+			stripes = (WeakHashMap<K, WeakReference<V>>[]) new WeakHashMap<?, ?>[STRIPES];
+			for (int i = 0; i < STRIPES; i++)
+				stripes[i] = new WeakHashMap<K, WeakReference<V>>();
+		}
+		// The interned value for key, made with create if there is none (any more).
+		// Looking up and adding is atomic, so two threads never intern two different values for one key.
+		V intern(K key, Function<? super K, ? extends V> create) {
+			int hash = key.hashCode();
+			WeakHashMap<K, WeakReference<V>> map = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+			synchronized (map) {
+				WeakReference<V> ref = map.get(key);
+				V value = (ref == null) ? null : ref.get();
+				if (value == null) {
+					value = create.apply(key);
+					map.put(key, new WeakReference<V>(value));
+				}
+				return value;
+			}
+		}
+		// Number of entries (includes nodes collected but not yet purged)
+		int size() {
+			int size = 0;
+			for (WeakHashMap<K, WeakReference<V>> map : stripes)
+				synchronized (map) {
+					size += map.size();
+				}
+			return size;
+		}
+	}
 	// Match a single symbol
 	// Symbol class is implementing FlyWeight class. Here, there won't be two object created for one symbol.
-        // Consider first symbol passed as 'x', first HashMap map shall be searched whether it contains previously created object for this symbol 'x'
-        // if previous object present in map wrp 'x', that object shall be return without creating new object for 'x'
-        // If map doesn't contains entry for symbol 'x' then new object shall be created and put in HashMap map for future use.
-	public static class Symbol implements Node {
+        // Consider first symbol passed as 'x': if 'x' is Latin-1, its object is taken from the latin1 array, made up front.
+        // Otherwise the InternTable map shall be searched, keyed by the char, for a previously created object for 'x',
+        // and if there is none, a new object shall be created and put in map for future use.
+	public static class Symbol extends Node {
 		char symbol;
-		private static HashMap<Character, Symbol> map = new HashMap<Character, Symbol>();
+		private static final Symbol[] latin1 = new Symbol[256];
+		private static final InternTable<Symbol> map = new InternTable<Symbol>();
+		static {
+			for (char c = 0; c < 256; c++)
+				latin1[c] = new Symbol(c);
+		}
 		// It's private, as in, do not use outside this class
 		private Symbol (char symbol) {
+			super(false);
 			this.symbol = symbol;
 		}
 		// How we actually "construct" a symbol
 		public static Symbol getInstance(char symbol) {
-			if (!map.containsKey(symbol)) {
-				map.put(symbol, new Symbol(symbol));
-			}
-			return map.get(symbol);
+			if (symbol < 256)
+				return latin1[symbol];
+			Symbol result = map.get(symbol, 0);
+			if (result == null)
+				result = map.putIfAbsent(symbol, 0, new Symbol(symbol));
+			return result;
+		}
+		// Number of symbols made (including some that are garbage but not purged yet)
+		public static int count() {
+			return latin1.length + map.size();
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+	// Match a string of chars, such as a keyword or the string given to fromString.
+	// It stands for the Sequence of its Symbols, but it is one node however long the string is, so it takes no
+	// stack to visit, and its derivative just moves on by one char: a Literal of the same text at offset + 1.
+	// The text is interned by its content, as the Literal at offset 0 (in a ContentTable, like CharClass),
+	// and the Literals further on are keyed by the id of that first one and their offset.
+	// getInstance returns e for an empty string and a Symbol for a single char, so a Literal always has two chars or more.
+	public static class Literal extends Node {
+		private static final ContentTable<String, Literal> texts = new ContentTable<String, Literal>();
+		private static final InternTable<Literal> map = new InternTable<Literal>();
+		final String text;
+		// The literal matches text from offset on
+		final int offset;
+		// The Literal at offset 0, which keeps the text interned as long as any part of it is used
+		final Literal first;
+		private Literal(String text, int offset, Literal first) {
+			super(false);
+			this.text = text;
+			this.offset = offset;
+			this.first = (first == null) ? this : first;
+		}
+		public static Node getInstance(String text) {
+			if (text.length() == 0)
+				return EmptyString.getInstance();
+			if (text.length() == 1)
+				return Symbol.getInstance(text.charAt(0));
+			return texts.intern(text, key -> new Literal(key, 0, null));
+		}
+		// The rest of a literal's text, from offset on
+		static Node getInstance(Literal first, int offset) {
+			int left = first.text.length() - offset;
+			if (left == 0)
+				return EmptyString.getInstance();
+			if (left == 1)
+				return Symbol.getInstance(first.text.charAt(offset));
+			if (offset == 0)
+				return first;
+			Literal literal = map.get(first.id, offset);
+			if (literal == null)
+				literal = map.putIfAbsent(first.id, offset, new Literal(first.text, offset, first));
+			return literal;
+		}
+		// The next char to match
+		public char head() {
+			return text.charAt(offset);
+		}
+		// Number of literals made (including some that are garbage but not purged yet)
+		public static int count() {
+			return texts.size() + map.size();
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+	// Match any one char of a set, such as [a-z0-9]
+	// CharClass is a FlyWeight too, keyed by the content of its ranges rather than by ids, so it has its own ContentTable.
+	// getInstance returns Ø for an empty set and a Symbol for a single char, so a CharClass always has two chars or more.
+	public static class CharClass extends Node {
+		private static final ContentTable<Ranges, CharClass> map = new ContentTable<Ranges, CharClass>();
+		Ranges ranges;
+		private CharClass(Ranges ranges) {
+			super(false);
+			this.ranges = ranges;
+		}
+		// bounds are pairs lo, hi (inclusive), in any order, possibly overlapping
+		public static Node getInstance(char... bounds) {
+			return getInstance(new Ranges(bounds));
+		}
+		public static Node getInstance(Ranges ranges) {
+			char[] bounds = ranges.bounds;
+			if (bounds.length == 0)
+				return EmptySet.getInstance();
+			if (bounds.length == 2 && bounds[0] == bounds[1])
+				return Symbol.getInstance(bounds[0]);
+			return map.intern(ranges, CharClass::new);
+		}
+		// Match any char from lo to hi
+		public static Node range(char lo, char hi) {
+			return getInstance(lo, hi);
+		}
+		// Match any char at all
+		public static Node any() {
+			return getInstance(Character.MIN_VALUE, Character.MAX_VALUE);
+		}
+		// Number of classes made (including some that are garbage but not purged yet)
+		public static int count() {
+			return map.size();
+		}
+		public boolean contains(char c) {
+			return ranges.contains(c);
 		}
 		@Override
 		public <T> T accept(Visitor<T> visitor) {
 			return visitor.visit(this);
 		}
 	}
+	// Sorted, disjoint, non adjacent ranges of chars lo0, hi0, lo1, hi1, ... (inclusive)
+	// It is the key of the CharClass flyweight map, so two Ranges are equal when they hold the same chars
+	public static class Ranges {
+		final char[] bounds;
+		public Ranges(char... pairs) {
+			// Sort the ranges by their low end, then merge the ones that overlap or touch
+			int n = pairs.length / 2;
+			long[] sorted = new long[n];
+			for (int i = 0; i < n; i++) {
+				char lo = (char) Math.min(pairs[2 * i], pairs[2 * i + 1]);
+				char hi = (char) Math.max(pairs[2 * i], pairs[2 * i + 1]);
+				sorted[i] = ((long) lo << 16) | hi;
+			}
+			Arrays.sort(sorted);
+			char[] merged = new char[2 * n];
+			int size = 0;
+			for (long range : sorted) {
+				char lo = (char) (range >>> 16), hi = (char) range;
+				if (size > 0 && lo <= merged[size - 1] + 1) {
+					merged[size - 1] = (char) Math.max(merged[size - 1], hi);
+				} else {
+					merged[size++] = lo;
+					merged[size++] = hi;
+				}
+			}
+			bounds = Arrays.copyOf(merged, size);
+		}
+		// Is node a set of chars?
+		public static boolean chars(Node node) {
+			return node instanceof Symbol || node instanceof CharClass;
+		}
+		// The chars of a Symbol or CharClass, or null for any other node
+		public static Ranges of(Node node) {
+			if (node instanceof Symbol)
+				return new Ranges(((Symbol) node).symbol, ((Symbol) node).symbol);
+			if (node instanceof CharClass)
+				return ((CharClass) node).ranges;
+			return null;
+		}
+		public boolean contains(char c) {
+			// Binary search for the last range starting at or before c
+			int lo = 0, hi = bounds.length / 2 - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (bounds[2 * mid] <= c)
+					lo = mid + 1;
+				else
+					hi = mid - 1;
+			}
+			return hi >= 0 && c <= bounds[2 * hi + 1];
+		}
+		public Ranges union(Ranges other) {
+			char[] pairs = Arrays.copyOf(bounds, bounds.length + other.bounds.length);
+			System.arraycopy(other.bounds, 0, pairs, bounds.length, other.bounds.length);
+			return new Ranges(pairs);
+		}
+		public Ranges intersection(Ranges other) {
+			return complement().union(other.complement()).complement();
+		}
+		// Every char not in this set
+		public Ranges complement() {
+			char[] pairs = new char[bounds.length + 2];
+			int size = 0;
+			int next = Character.MIN_VALUE;
+			for (int i = 0; i < bounds.length; i += 2) {
+				if (bounds[i] > next) {
+					pairs[size++] = (char) next;
+					pairs[size++] = (char) (bounds[i] - 1);
+				}
+				next = bounds[i + 1] + 1;
+			}
+			if (next <= Character.MAX_VALUE) {
+				pairs[size++] = (char) next;
+				pairs[size++] = Character.MAX_VALUE;
+			}
+			return new Ranges(Arrays.copyOf(pairs, size));
+		}
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof Ranges) && Arrays.equals(bounds, ((Ranges) o).bounds);
+		}
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(bounds);
+		}
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("[");
+			for (int i = 0; i < bounds.length; i += 2) {
+				append(builder, bounds[i]);
+				if (bounds[i + 1] != bounds[i]) {
+					builder.append('-');
+					append(builder, bounds[i + 1]);
+				}
+			}
+			return builder.append(']').toString();
+		}
+		private static void append(StringBuilder builder, char c) {
+			if (c < ' ' || c > '~')
+				builder.append(String.format("\\u%04x", (int) c));
+			else if (c == '-' || c == ']' || c == '\\' || c == '^' || c == '[')
+				builder.append('\\').append(c);
+			else
+				builder.append(c);
+		}
+	}
 	// Match (child)*
 	// Star class is implementing FlyWeight class. Here, there won't be two object created for one Star.
-        // Consider first node passed as 'x', first HashMap map shall be searched whether it contains previously created object for this node 'x'
+        // Consider first node passed as 'x', first the InternTable map shall be searched, keyed by the id of 'x', whether it contains previously created object for this node 'x'
         // if previous object present in map wrp 'x', that object shall be return without creating new object for 'x'
-        // If map doesn't contains entry for node 'x' then new object shall be created and put in HashMap map for future use.
-	public static class Star implements Node {
-		private static HashMap<Node, Star> map = new HashMap<Node, Star>();
+        // If map doesn't contains entry for node 'x' then new object shall be created and put in map for future use.
+	public static class Star extends Node {
+		private static final InternTable<Star> map = new InternTable<Star>();
 		Node child;
-		// Make the constructor private and have a hashmap here too
+		// The constructor is private: Stars are made by getInstance, and interned in map
 		private Star(Node child) {
+			super(true, (int) Math.min(Integer.MAX_VALUE, 1L + child.size));
 			this.child = child;
 		}
 		// getInstance will return a Node but possibly not a Star
-		// if the child is an emptyString, return emptyString
+		// Ø* = e and e* = e, (r*)* = r*
 		public static Node getInstance(Node child) {
-                    if (child == EmptySet.getInstance())
+                    if (child == EmptySet.getInstance() || child == EmptyString.getInstance())
+				return EmptyString.getInstance();
+                    if (child instanceof Star)
 				return child;
-                    if (!map.containsKey(child)) {
-				map.put(child, new Star(child));
+                    Star star = map.get(child.id, 0);
+                    if (star == null) {
+				star = map.putIfAbsent(child.id, 0, new Star(child));
 			}
-			return map.get(child);
+			return star;
+		}
+		public static InternTable<Star> table() {
+			return map;
 		}
 		@Override
 		public <T> T accept(Visitor<T> visitor) {
@@ -137,38 +643,94 @@ public class Regex {
 		}
 	}
         
+	// Match child{min,max}: from min to max copies of child, any number from min on if max is UNBOUNDED.
+	// The copies are not unrolled into a Sequence: the derivative takes a char off the first copy and counts
+	// down, so a{1000} is one node, and so is each of its derivatives.
+	// Both counts are packed in 16 bits each of the key next to the child's id, which is why they are at most MAX_COUNT.
+	public static class Repeat extends Node {
+		public static final int UNBOUNDED = -1, MAX_COUNT = 0xFFFE;
+		private static final InternTable<Repeat> map = new InternTable<Repeat>();
+		final Node child;
+		final int min, max;
+		private Repeat(Node child, int min, int max) {
+			super(min == 0 || child.nullable, (int) Math.min(Integer.MAX_VALUE, 1L + child.size));
+			this.child = child;
+			this.min = min;
+			this.max = max;
+		}
+		public static Node getInstance(Node child, int min, int max) {
+			if (min < 0 || min > MAX_COUNT || max > MAX_COUNT || (max != UNBOUNDED && max < min))
+				throw new IllegalArgumentException("Bad repeat count {" + min + "," + max + "}");
+			// r{0} = e, e{n,m} = e, Ø{0,m} = e, Ø{n,m} = Ø
+			if (max == 0 || child == EmptyString.getInstance())
+				return EmptyString.getInstance();
+			if (child == EmptySet.getInstance())
+				return (min == 0) ? EmptyString.getInstance() : EmptySet.getInstance();
+			// A nullable r can match "" for the copies it is short of, so r{n,m} = r{0,m}
+			if (child.nullable)
+				min = 0;
+			// r{1} = r, r{0,} = r*, (r*){n,m} = r*
+			if (min == 1 && max == 1)
+				return child;
+			if ((min == 0 && max == UNBOUNDED) || child instanceof Star)
+				return Star.getInstance(child);
+			int counts = (min << 16) | (max & 0xFFFF);
+			Repeat repeat = map.get(child.id, counts);
+			if (repeat == null)
+				repeat = map.putIfAbsent(child.id, counts, new Repeat(child, min, max));
+			return repeat;
+		}
+		// child{min - 1, max - 1}: what is left to match once the first copy is done
+		public Node rest() {
+			return getInstance(child, Math.max(min - 1, 0), (max == UNBOUNDED) ? UNBOUNDED : max - 1);
+		}
+		public static InternTable<Repeat> table() {
+			return map;
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+
         // This class contains state of Sequence. Since Sequence operate on two object, new class is created to hold value
-        public static class SequenceChild implements Node
+        public static class SequenceChild
         {
            Node a, b;
            public SequenceChild(Node a, Node b) {
 			this.a = a; this.b = b;
 		}
-           
-           @Override
-		public <T> T accept(Visitor<T> visitor) {
-			return visitor.visit(this);
-		}
         }
         
 	// Match a followed by b
 	// This class implemented using Flyweight where only one object created for same sequence.
-	public static class Sequence implements Node {
-                private static HashMap<SequenceChild, Sequence> map = new HashMap<SequenceChild, Sequence>();
-		//Node a, b;
+	public static class Sequence extends Node {
+                private static final InternTable<Sequence> map = new InternTable<Sequence>();
                 SequenceChild sequenceChild;
-		/*public Sequence(Node a, Node b) {
-			this.a = a; this.b = b;
-		}*/
-                public Sequence(SequenceChild c)
+                private Sequence(SequenceChild c)
                 {
+                    super(c.a.nullable && c.b.nullable, size(c.a, c.b));
                     this.sequenceChild = c;
                 }
                 public static Node getInstance(SequenceChild child) {
-                    if (!map.containsKey(child)) {
-				map.put(child, new Sequence(child));
+                    return getInstance(child.a, child.b);
+		}
+		// Compaction: Ør = rØ = Ø, er = re = r
+		public static Node getInstance(Node a, Node b) {
+			if (a == EmptySet.getInstance() || b == EmptySet.getInstance())
+				return EmptySet.getInstance();
+			if (a == EmptyString.getInstance())
+				return b;
+			if (b == EmptyString.getInstance())
+				return a;
+                    Sequence sequence = map.get(a.id, b.id);
+                    if (sequence == null) {
+				sequence = map.putIfAbsent(a.id, b.id, new Sequence(new SequenceChild(a, b)));
 			}
-			return map.get(child);
+			return sequence;
+		}
+		public static InternTable<Sequence> table() {
+			return map;
 		}
 		@Override
 		public <T> T accept(Visitor<T> visitor) {
@@ -177,36 +739,250 @@ public class Regex {
 	}
         
          // This class contains state of Or. Since Or operate on two object, new class is created to hold value
-        public static class OrChild implements Node
+        public static class OrChild
         {
            Node a, b;
            public OrChild(Node a, Node b) {
 			this.a = a; this.b = b;
 		}
-           @Override
-		public <T> T accept(Visitor<T> visitor) {
-			return visitor.visit(this);
-		}
         }
 	// Match a or b
 	// This Or class implement Flyweight and compaction
-	public static class Or implements Node {
-		// Node a, b;
-                private static HashMap<OrChild, Or> map = new HashMap<OrChild, Or>();
-		//Node a, b;
+	// An Or is kept in a canonical form: a right nested chain a1|(a2|(...|an)) with no Ø, no duplicates,
+	// no Or among the ai, sorted by id. So two Ors matching the same set of alternatives are the same node,
+	// which keeps the number of distinct derivatives of a regex finite.
+	public static class Or extends Node {
+                private static final InternTable<Or> map = new InternTable<Or>();
                 OrChild orChild;
-		/*public Or(Or a, Or b) {
-			this.a = a; this.b = b;
-		}*/
-                  public Or(OrChild c)
+                private Or(OrChild c)
                 {
+                    super(c.a.nullable || c.b.nullable, size(c.a, c.b));
                     this.orChild = c;
                 }
                 public static Node getInstance(OrChild child) {
-                    if (!map.containsKey(child)) {
-				map.put(child, new Or(child));
+                    return getInstance(child.a, child.b);
+		}
+		public static Node getInstance(Node a, Node b) {
+			// r|Ø = Ø|r = r, r|r = r
+			if (a == EmptySet.getInstance() || a == b)
+				return b;
+			if (b == EmptySet.getInstance())
+				return a;
+			// Alternatives that are sets of chars merge into one CharClass
+			if (Ranges.chars(a) && Ranges.chars(b))
+				return CharClass.getInstance(Ranges.of(a).union(Ranges.of(b)));
+			// Commutativity: order the alternatives by id
+			if (!(a instanceof Or) && !(b instanceof Or))
+				return (a.id < b.id) ? intern(a, b) : intern(b, a);
+			// An alternative that goes first (or is there already) in the other's chain needs no merging
+			if (!(a instanceof Or) && !Ranges.chars(a) && a.id <= ((Or) b).orChild.a.id)
+				return (a == ((Or) b).orChild.a) ? b : intern(a, b);
+			if (!(b instanceof Or) && !Ranges.chars(b) && b.id <= ((Or) a).orChild.a.id)
+				return (b == ((Or) a).orChild.a) ? a : intern(b, a);
+			// Associativity: merge the sorted alternatives of both sides, dropping duplicates
+			ArrayList<Node> first = alternatives(a), second = alternatives(b);
+			ArrayList<Node> merged = new ArrayList<Node>(first.size() + second.size());
+			// Each side has at most one set of chars, pull them out to merge them
+			Ranges chars = null;
+			int i = 0, j = 0;
+			while (i < first.size() || j < second.size()) {
+				Node next;
+				if (j == second.size() || (i < first.size() && first.get(i).id <= second.get(j).id))
+					next = first.get(i++);
+				else
+					next = second.get(j++);
+				if (Ranges.chars(next))
+					chars = (chars == null) ? Ranges.of(next) : chars.union(Ranges.of(next));
+				else if (merged.isEmpty() || merged.get(merged.size() - 1) != next)
+					merged.add(next);
+			}
+			if (chars != null) {
+				Node charClass = CharClass.getInstance(chars);
+				int k = 0;
+				while (k < merged.size() && merged.get(k).id < charClass.id)
+					k++;
+				if (k == merged.size() || merged.get(k) != charClass)
+					merged.add(k, charClass);
+			}
+			Node result = merged.get(merged.size() - 1);
+			for (int k = merged.size() - 2; k >= 0; k--)
+				result = intern(merged.get(k), result);
+			return result;
+		}
+		// The Or of any number of nodes, made in one go: merging them two by two would copy the chain every
+		// time, which is quadratic for thousands of alternatives (such as a list of keywords)
+		public static Node of(List<Node> nodes) {
+			ArrayList<Node> all = new ArrayList<Node>();
+			// The sets of chars all merge into one CharClass
+			StringBuilder chars = new StringBuilder();
+			for (Node node : nodes)
+				for (Node alternative : alternatives(node)) {
+					if (alternative instanceof Symbol)
+						chars.append(((Symbol) alternative).symbol).append(((Symbol) alternative).symbol);
+					else if (alternative instanceof CharClass)
+						chars.append(((CharClass) alternative).ranges.bounds);
+					else if (alternative != EmptySet.getInstance())
+						all.add(alternative);
+				}
+			if (chars.length() > 0)
+				all.add(CharClass.getInstance(new Ranges(chars.toString().toCharArray())));
+			if (all.isEmpty())
+				return EmptySet.getInstance();
+			all.sort((a, b) -> Long.compare(a.id, b.id));
+			Node result = all.get(all.size() - 1);
+			for (int k = all.size() - 2; k >= 0; k--)
+				if (all.get(k) != all.get(k + 1))
+					result = intern(all.get(k), result);
+			return result;
+		}
+		// The alternatives of a canonical Or, in order
+		private static ArrayList<Node> alternatives(Node node) {
+			ArrayList<Node> list = new ArrayList<Node>();
+			while (node instanceof Or) {
+				list.add(((Or) node).orChild.a);
+				node = ((Or) node).orChild.b;
 			}
-			return map.get(child);
+			list.add(node);
+			return list;
+		}
+		private static Node intern(Node a, Node b) {
+                    Or or = map.get(a.id, b.id);
+                    if (or == null) {
+				or = map.putIfAbsent(a.id, b.id, new Or(new OrChild(a, b)));
+			}
+			return or;
+		}
+		public static InternTable<Or> table() {
+			return map;
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+	// Match a and b: the strings that both match
+	// And is kept in the same canonical form as Or, a right nested chain a1&(a2&(...&an)) with no And among
+	// the ai, sorted by id, with no duplicates. All the sets of chars are intersected into one, ~Ø (any string)
+	// is left out, and Ø or both r and ~r make the whole And Ø.
+	public static class And extends Node {
+		private static final InternTable<And> map = new InternTable<And>();
+		final Node a, b;
+		private And(Node a, Node b) {
+			super(a.nullable && b.nullable, size(a, b));
+			this.a = a;
+			this.b = b;
+		}
+		public static Node getInstance(Node a, Node b) {
+			if (a == b)
+				return a;
+			return of(Arrays.asList(a, b));
+		}
+		// The And of any number of nodes, ~Ø if there are none
+		public static Node of(List<Node> nodes) {
+			ArrayList<Node> all = new ArrayList<Node>();
+			Ranges chars = null;
+			HashSet<Node> seen = new HashSet<Node>();
+			for (Node node : nodes)
+				for (Node conjunct : conjuncts(node)) {
+					if (conjunct == EmptySet.getInstance())
+						return EmptySet.getInstance();
+					if (Ranges.chars(conjunct))
+						chars = (chars == null) ? Ranges.of(conjunct) : chars.intersection(Ranges.of(conjunct));
+					else if (conjunct != Not.any() && seen.add(conjunct))
+						all.add(conjunct);
+				}
+			if (chars != null) {
+				Node set = CharClass.getInstance(chars);
+				all.add(set);
+				seen.add(set);
+			}
+			for (Node conjunct : all)
+				if (conjunct == EmptySet.getInstance() || (conjunct instanceof Not && seen.contains(((Not) conjunct).child)))
+					return EmptySet.getInstance();
+			if (all.isEmpty())
+				return Not.any();
+			all.sort((x, y) -> Long.compare(x.id, y.id));
+			Node result = all.get(all.size() - 1);
+			for (int k = all.size() - 2; k >= 0; k--)
+				result = intern(all.get(k), result);
+			return result;
+		}
+		// The conjuncts of a canonical And, in order
+		static ArrayList<Node> conjuncts(Node node) {
+			ArrayList<Node> list = new ArrayList<Node>();
+			while (node instanceof And) {
+				list.add(((And) node).a);
+				node = ((And) node).b;
+			}
+			list.add(node);
+			return list;
+		}
+		private static Node intern(Node a, Node b) {
+			And and = map.get(a.id, b.id);
+			if (and == null)
+				and = map.putIfAbsent(a.id, b.id, new And(a, b));
+			return and;
+		}
+		public static InternTable<And> table() {
+			return map;
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+	// Match ~child: every string that child does not match
+	// ~~r = r. ~Ø, which matches any string, is made once and kept, as And leaves it out by identity.
+	public static class Not extends Node {
+		private static final InternTable<Not> map = new InternTable<Not>();
+		private static final Not any = new Not(EmptySet.getInstance());
+		final Node child;
+		private Not(Node child) {
+			super(!child.nullable, (int) Math.min(Integer.MAX_VALUE, 1L + child.size));
+			this.child = child;
+		}
+		public static Node getInstance(Node child) {
+			if (child instanceof Not)
+				return ((Not) child).child;
+			if (child == EmptySet.getInstance())
+				return any;
+			Not not = map.get(child.id, 0);
+			if (not == null)
+				not = map.putIfAbsent(child.id, 0, new Not(child));
+			return not;
+		}
+		// ~Ø: any string at all
+		public static Node any() {
+			return any;
+		}
+		public static InternTable<Not> table() {
+			return map;
+		}
+		@Override
+		public <T> T accept(Visitor<T> visitor) {
+			return visitor.visit(this);
+		}
+	}
+	// A capture group: matches what child matches, and marks the text it matched for Captures.
+	// Groups are numbered by their ( from the left, starting at 1.
+	// Whether a string matches does not depend on groups, so the derivative of a group is the derivative of its child.
+	public static class Group extends Node {
+		private static final InternTable<Group> map = new InternTable<Group>();
+		final int index;
+		final Node child;
+		private Group(int index, Node child) {
+			super(child.nullable, (int) Math.min(Integer.MAX_VALUE, 1L + child.size));
+			this.index = index;
+			this.child = child;
+		}
+		public static Node getInstance(int index, Node child) {
+			Group group = map.get(index, child.id);
+			if (group == null)
+				group = map.putIfAbsent(index, child.id, new Group(index, child));
+			return group;
+		}
+		public static InternTable<Group> table() {
+			return map;
 		}
 		@Override
 		public <T> T accept(Visitor<T> visitor) {
@@ -214,9 +990,24 @@ public class Regex {
 		}
 	}
 	
+	// A Derivative is made for one char and one derivation, and is not shared, so deriving is safe from any thread
 	public static class Derivative implements Visitor<Node> {
-		Nullable nullable = new Nullable();
-		public char c; // Derive with respect to c
+		public final char c; // Derive with respect to c
+		// Derivatives of the composite nodes seen so far. Subtrees are shared (a+ is aa*),
+		// and without this, nested sharing such as ((a+)+)+ gets derived over and over, exponentially.
+		private final HashMap<Node, Node> memo = new HashMap<Node, Node>();
+		public Derivative(char c) {
+			this.c = c;
+		}
+		// Derive node with respect to c
+		public static Node derive(Node node, char c) {
+			Node result = node.accept(new Derivative(c));
+			Metrics.derived(result);
+			return result;
+		}
+		private Node memoized(Node node) {
+			return memo.get(node);
+		}
 		@Override
 		public Node visit(EmptySet node) {
 			// Dc(0) = 0
@@ -237,148 +1028,2522 @@ public class Regex {
 				return EmptySet.getInstance();
 		}
 		@Override
+		public Node visit(Literal node) {
+			// Dc(cw) = w, Dc(c'w) = 0 if c is not c'
+			return (c == node.head()) ? Literal.getInstance(node.first, node.offset + 1) : EmptySet.getInstance();
+		}
+		@Override
+		public Node visit(CharClass node) {
+			// Dc([...]) = "" if c is in the class, 0 otherwise
+			return node.contains(c) ? EmptyString.getInstance() : EmptySet.getInstance();
+		}
+		@Override
 		public Node visit(Star node) {
 			// Dc(a*) = Dc(a)a*
-			//return new Sequence(node.child.accept(this), node);
-                        return Sequence.getInstance(new SequenceChild(node.child.accept(this), node));
+			Node result = memoized(node);
+			if (result == null) {
+				result = Sequence.getInstance(node.child.accept(this), node);
+				memo.put(node, result);
+			}
+			return result;
+		}
+		@Override
+		public Node visit(Repeat node) {
+			// Dc(a{n,m}) = Dc(a)a{n-1,m-1}
+			Node result = memoized(node);
+			if (result == null) {
+				result = Sequence.getInstance(node.child.accept(this), node.rest());
+				memo.put(node, result);
+			}
+			return result;
 		}
 
 		@Override
 		public Node visit(Sequence node) {
-			//Node result = new Sequence( node.a.accept(this), node.b);
-                        Node result = Sequence.getInstance(new SequenceChild( node.sequenceChild.a.accept(this), node.sequenceChild.b));
-			// Dc(AB) = Dc(A)B if A does not contain the empty string
-			if (!node.sequenceChild.a.accept(nullable)) {
+			Node result = memoized(node);
+			if (result != null)
 				return result;
+			result = Sequence.getInstance(node.sequenceChild.a.accept(this), node.sequenceChild.b);
+			// Dc(AB) = Dc(A)B if A does not contain the empty string
 			// Dc(AB) = Dc(A)B | Dc(B) if A contains the empty string
-			} else {
-				/* return new Or(
+			if (node.sequenceChild.a.nullable) {
+                                result = Or.getInstance(
 						result, // Dc(AB)
 						node.sequenceChild.b.accept(this) // Dc(B)
 						);
-                                */
-                                return Or.getInstance( new OrChild(
-						result, // Dc(AB)
-						node.sequenceChild.b.accept(this)) // Dc(B)
-						);
 			}
+			memo.put(node, result);
+			return result;
 		}
 		@Override
 		public Node visit(Or node) {
 			// Dc(A | B) = Dc(A) | Dc(B)
-			return Or.getInstance(new OrChild( node.orChild.a.accept(this), node.orChild.b.accept(this)));
+			Node result = memoized(node);
+			if (result == null) {
+				// Derive each alternative of the chain, rather than recursing down it
+				ArrayList<Node> derived = new ArrayList<Node>();
+				Node rest = node;
+				while (rest instanceof Or) {
+					derived.add(((Or) rest).orChild.a.accept(this));
+					rest = ((Or) rest).orChild.b;
+				}
+				derived.add(rest.accept(this));
+				result = Or.of(derived);
+				memo.put(node, result);
+			}
+			return result;
 		}
-                
-                @Override
-		public Node visit(SequenceChild node) {
-			// Dc(A | B) = Dc(A) | Dc(B)
-			// return new Or(node.a.accept(this), node.b.accept(this));
-                        return  Or.getInstance(new OrChild( node.a.accept(this), node.b.accept(this)));
+		@Override
+		public Node visit(And node) {
+			// Dc(A & B) = Dc(A) & Dc(B)
+			Node result = memoized(node);
+			if (result == null) {
+				ArrayList<Node> derived = new ArrayList<Node>();
+				for (Node conjunct : And.conjuncts(node))
+					derived.add(conjunct.accept(this));
+				result = And.of(derived);
+				memo.put(node, result);
+			}
+			return result;
 		}
-                 @Override
-		public Node visit(OrChild node) {
-			// Dc(A | B) = Dc(A) | Dc(B)
-			//return new Or(node.a.accept(this), node.b.accept(this));
-                     return Or.getInstance(new OrChild( node.a.accept(this), node.b.accept(this)));
+		@Override
+		public Node visit(Not node) {
+			// Dc(~A) = ~Dc(A)
+			Node result = memoized(node);
+			if (result == null) {
+				result = Not.getInstance(node.child.accept(this));
+				memo.put(node, result);
+			}
+			return result;
+		}
+		@Override
+		public Node visit(Group node) {
+			// Dc((A)) = Dc(A)
+			return node.child.accept(this);
 		}
 	}
 	// Does the regex match the empty string?
+	// Each node already knows the answer, see Node.nullable
 	public static class Nullable implements Visitor<Boolean> {
 		@Override
 		public Boolean visit(EmptySet node) {
-			return false;
+			return node.nullable;
 		}
 		@Override
 		public Boolean visit(EmptyString node) {
-			return true;
+			return node.nullable;
 		}
 		@Override
 		public Boolean visit(Symbol node) {
-			return false;
+			return node.nullable;
+		}
+		@Override
+		public Boolean visit(Literal node) {
+			return node.nullable;
+		}
+		@Override
+		public Boolean visit(CharClass node) {
+			return node.nullable;
 		}
 		@Override
 		public Boolean visit(Star node) {
-			return true;
+			return node.nullable;
+		}
+		@Override
+		public Boolean visit(Repeat node) {
+			return node.nullable;
 		}
 		@Override
 		public Boolean visit(Sequence node) {
-			return node.sequenceChild.a.accept(this) && node.sequenceChild.b.accept(this);
+			return node.nullable;
 		}
 		@Override
 		public Boolean visit(Or node) {
-			return node.orChild.a.accept(this) || node.orChild.b.accept(this);
+			return node.nullable;
 		}
-               @Override
-		public Boolean visit(SequenceChild node) {
-			return node.a.accept(this) || node.b.accept(this);
+		@Override
+		public Boolean visit(And node) {
+			return node.nullable;
 		}
-                @Override
-		public Boolean visit(OrChild node) {
-			return node.a.accept(this) || node.b.accept(this);
+		@Override
+		public Boolean visit(Not node) {
+			return node.nullable;
+		}
+		@Override
+		public Boolean visit(Group node) {
+			return node.nullable;
 		}
 	}
-	// Use derivatives to match regular expressions
-	public static boolean match(Node regex, String string) {
-		// Two visitors
-		Derivative d = new Derivative();
-		Nullable nullable = new Nullable();
-		// For debugging, create the printer here
-		Printer printer = new Printer();
-                int index=1;
-		// Just compute the derivative with respect to the first character, then the second, then the third and so on.
-		for (char c : string.toCharArray()) {
-			d.c = c; // Set the first character
-			// For debugging purposes,
-			// Print out the new regex
-                        System.out.println("Derivative: " + index);
-			System.out.println("Regex: " + regex.accept(printer));
-			regex = regex.accept(d); // regex should match what it used to match, sans first character c
-                        index++;
-		}
-                
-		System.out.println("Final Regex: " + regex.accept(printer));
-                
-		// If the final language contains the empty string, then the original string was in the original language.
-		// Does the regex match the empty string?
-		return regex.accept(nullable);
-	}
-	// Match String s literally	
-	public static Node fromString(String s) {
-		if (s.length() == 0)
-			return new EmptyString();
-		//return new Sequence(new Symbol(s.charAt(0)),
-		//		fromString(s.substring(1)));
-                
-                return Sequence.getInstance(new SequenceChild( Symbol.getInstance(s.charAt(0)),
-				fromString(s.substring(1))));
-	}
-	// Create a nested sequence from an array of nodes
-	public static Node seq(Node...s) {
-		return null;
-	}
-	public static Node or(Node...s) {
-		return null;
+	// The regex matching every string of the original, backwards
+	public static class Reverse implements Visitor<Node> {
+		// Shared subtrees are reversed once
+		private final HashMap<Node, Node> memo = new HashMap<Node, Node>();
+		@Override
+		public Node visit(EmptySet node) {
+			return node;
+		}
+		@Override
+		public Node visit(EmptyString node) {
+			return node;
+		}
+		@Override
+		public Node visit(Symbol node) {
+			return node;
+		}
+		@Override
+		public Node visit(Literal node) {
+			// Char by char, so a surrogate pair gets swapped like any other two chars
+			char[] chars = new char[node.text.length() - node.offset];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = node.text.charAt(node.text.length() - 1 - i);
+			return Literal.getInstance(new String(chars));
+		}
+		@Override
+		public Node visit(CharClass node) {
+			return node;
+		}
+		@Override
+		public Node visit(Star node) {
+			Node result = memo.get(node);
+			if (result == null)
+				memo.put(node, result = Star.getInstance(node.child.accept(this)));
+			return result;
+		}
+		@Override
+		public Node visit(Repeat node) {
+			Node result = memo.get(node);
+			if (result == null)
+				memo.put(node, result = Repeat.getInstance(node.child.accept(this), node.min, node.max));
+			return result;
+		}
+		@Override
+		public Node visit(Sequence node) {
+			// rev(AB) = rev(B)rev(A)
+			Node result = memo.get(node);
+			if (result == null)
+				memo.put(node, result = Sequence.getInstance(node.sequenceChild.b.accept(this), node.sequenceChild.a.accept(this)));
+			return result;
+		}
+		@Override
+		public Node visit(Or node) {
+			Node result = memo.get(node);
+			if (result == null) {
+				ArrayList<Node> reversed = new ArrayList<Node>();
+				for (Node alternative : Or.alternatives(node))
+					reversed.add(alternative.accept(this));
+				memo.put(node, result = Or.of(reversed));
+			}
+			return result;
+		}
+		@Override
+		public Node visit(And node) {
+			Node result = memo.get(node);
+			if (result == null) {
+				ArrayList<Node> reversed = new ArrayList<Node>();
+				for (Node conjunct : And.conjuncts(node))
+					reversed.add(conjunct.accept(this));
+				memo.put(node, result = And.of(reversed));
+			}
+			return result;
+		}
+		@Override
+		public Node visit(Not node) {
+			// Reversing is one to one, so rev(~A) = ~rev(A)
+			Node result = memo.get(node);
+			if (result == null)
+				memo.put(node, result = Not.getInstance(node.child.accept(this)));
+			return result;
+		}
+		@Override
+		public Node visit(Group node) {
+			Node result = memo.get(node);
+			if (result == null)
+				memo.put(node, result = Group.getInstance(node.index, node.child.accept(this)));
+			return result;
+		}
 	}
-	public static void main(String[] args) {
-		String s = "H";
-		s += "ello";
-		if("Hello" == (s)) {
-			System.out.println("WTF");
+	// Literal strings that every match of a regex must start with, end with, or contain.
+	// Searching for those with indexOf is much faster than running the automaton over every char.
+	public static class Literals {
+		// The regex matches exactly this one string
+		final boolean exact;
+		final String prefix, suffix, factor;
+		private Literals(boolean exact, String prefix, String suffix, String factor) {
+			this.exact = exact;
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.factor = factor;
 		}
-                System.out.println("Computing Regular Expression...");
-		// Does a|b match a?
-		long then = System.nanoTime();
-		for (int i = 0; i < 1; i++)
-                {
-                    
-			// bob
-			// ob
-			// b
-			// emptystring
-			Regex.match(Regex.fromString("bob"), "bob");
-                        
-                }
-                System.err.println("Total time taken (nanoseconds):" + (System.nanoTime() - then));
-                        
+		private static Literals exact(String s) {
+			return new Literals(true, s, s, s);
+		}
+		private static final Literals NONE = new Literals(false, "", "", "");
+		// Longest string a Repeat of an exact string is spelt out to
+		private static final int MAX_REPEATED = 1 << 12;
+		public static Literals of(Node regex) {
+			return regex.accept(new Visitor<Literals>() {
+				// Shared subtrees are looked at once
+				HashMap<Node, Literals> memo = new HashMap<Node, Literals>();
+				public Literals visit(EmptySet node) {
+					return NONE;
+				}
+				public Literals visit(EmptyString node) {
+					return exact("");
+				}
+				public Literals visit(Symbol node) {
+					return exact("" + node.symbol);
+				}
+				public Literals visit(Literal node) {
+					return exact(node.text.substring(node.offset));
+				}
+				public Literals visit(CharClass node) {
+					return NONE;
+				}
+				public Literals visit(Star node) {
+					return NONE;
+				}
+				public Literals visit(Repeat node) {
+					if (node.min == 0)
+						return NONE;
+					// At least one copy, so whatever every copy starts with, ends with or contains
+					Literals child = node.child.accept(this);
+					if (child.exact && node.min == node.max && (long) child.prefix.length() * node.min <= MAX_REPEATED)
+						return exact(child.prefix.repeat(node.min));
+					return new Literals(false, child.prefix, child.suffix, child.factor);
+				}
+				public Literals visit(Sequence node) {
+					Literals result = memo.get(node);
+					if (result == null)
+						memo.put(node, result = sequence(node));
+					return result;
+				}
+				public Literals visit(Or node) {
+					Literals result = memo.get(node);
+					if (result == null)
+						memo.put(node, result = or(node));
+					return result;
+				}
+				public Literals visit(And node) {
+					Literals result = memo.get(node);
+					if (result == null)
+						memo.put(node, result = and(node));
+					return result;
+				}
+				public Literals visit(Not node) {
+					return NONE;
+				}
+				public Literals visit(Group node) {
+					return node.child.accept(this);
+				}
+				private Literals sequence(Sequence node) {
+					Literals a = node.sequenceChild.a.accept(this), b = node.sequenceChild.b.accept(this);
+					if (a.exact && b.exact)
+						return exact(a.prefix + b.prefix);
+					String prefix = a.exact ? a.prefix + b.prefix : a.prefix;
+					String suffix = b.exact ? a.suffix + b.suffix : b.suffix;
+					return new Literals(false, prefix, suffix, longest(a.factor, b.factor, a.suffix + b.prefix));
+				}
+				// A match matches every conjunct, so whatever any of them tells holds: keep the longest
+				private Literals and(And node) {
+					Literals result = NONE;
+					for (Node conjunct : And.conjuncts(node)) {
+						Literals b = conjunct.accept(this);
+						if (b.exact)
+							return b;
+						result = new Literals(false, longest(result.prefix, b.prefix, ""), longest(result.suffix, b.suffix, ""),
+								longest(result.factor, b.factor, ""));
+					}
+					return result;
+				}
+				// The prefix and suffix common to all the alternatives
+				private Literals or(Or node) {
+					ArrayList<Node> alternatives = Or.alternatives(node);
+					Literals a = alternatives.get(0).accept(this);
+					String prefix = a.prefix, suffix = a.suffix;
+					for (int i = 1; i < alternatives.size(); i++) {
+						Literals b = alternatives.get(i).accept(this);
+						int p = 0, s = 0;
+						while (p < prefix.length() && p < b.prefix.length() && prefix.charAt(p) == b.prefix.charAt(p))
+							p++;
+						while (s < suffix.length() && s < b.suffix.length()
+								&& suffix.charAt(suffix.length() - 1 - s) == b.suffix.charAt(b.suffix.length() - 1 - s))
+							s++;
+						prefix = prefix.substring(0, p);
+						suffix = suffix.substring(suffix.length() - s);
+					}
+					return new Literals(false, prefix, suffix, longest(prefix, suffix, ""));
+				}
+			});
+		}
+		private static String longest(String a, String b, String c) {
+			String result = (a.length() >= b.length()) ? a : b;
+			return (result.length() >= c.length()) ? result : c;
+		}
+		public String prefix() {
+			return prefix;
+		}
+		public String factor() {
+			return factor;
+		}
+	}
+	// Partition of the chars into classes that every derivative of a regex treats alike.
+	// Derivatives never introduce new symbols, so the Symbols and CharClasses of the original regex
+	// decide it: two chars are in the same class when no Symbol or CharClass tells them apart.
+	public static class Alphabet {
+		// Class i is the chars from cuts[i] to cuts[i + 1] - 1
+		final int[] cuts;
+		// Direct lookup for Latin-1, binary search on cuts for the rest
+		private final int[] latin1 = new int[256];
+
+		// The classes of one regex, or the common classes of several (such as the rules of a Lexer)
+		public Alphabet(Node... regexes) {
+			final TreeSet<Integer> set = new TreeSet<Integer>();
+			set.add(0);
+			set.add(Character.MAX_VALUE + 1);
+			Visitor<Void> boundaries = new Visitor<Void>() {
+				// Nodes are shared, visit each only once
+				HashSet<Node> seen = new HashSet<Node>();
+				public Void visit(EmptySet node) {
+					return null;
+				}
+				public Void visit(EmptyString node) {
+					return null;
+				}
+				public Void visit(Symbol node) {
+					set.add((int) node.symbol);
+					set.add(node.symbol + 1);
+					return null;
+				}
+				public Void visit(Literal node) {
+					if (seen.add(node))
+						for (int i = node.offset; i < node.text.length(); i++) {
+							set.add((int) node.text.charAt(i));
+							set.add(node.text.charAt(i) + 1);
+						}
+					return null;
+				}
+				public Void visit(CharClass node) {
+					char[] bounds = node.ranges.bounds;
+					for (int i = 0; i < bounds.length; i += 2) {
+						set.add((int) bounds[i]);
+						set.add(bounds[i + 1] + 1);
+					}
+					return null;
+				}
+				public Void visit(Star node) {
+					if (seen.add(node))
+						node.child.accept(this);
+					return null;
+				}
+				public Void visit(Repeat node) {
+					if (seen.add(node))
+						node.child.accept(this);
+					return null;
+				}
+				public Void visit(Sequence node) {
+					if (seen.add(node)) {
+						node.sequenceChild.a.accept(this);
+						node.sequenceChild.b.accept(this);
+					}
+					return null;
+				}
+				public Void visit(Or node) {
+					Node rest = node;
+					while (rest instanceof Or && seen.add(rest)) {
+						((Or) rest).orChild.a.accept(this);
+						rest = ((Or) rest).orChild.b;
+					}
+					if (!(rest instanceof Or))
+						rest.accept(this);
+					return null;
+				}
+				public Void visit(And node) {
+					if (seen.add(node))
+						for (Node conjunct : And.conjuncts(node))
+							conjunct.accept(this);
+					return null;
+				}
+				public Void visit(Not node) {
+					// A complement has the same boundaries as its child
+					if (seen.add(node))
+						node.child.accept(this);
+					return null;
+				}
+				public Void visit(Group node) {
+					if (seen.add(node))
+						node.child.accept(this);
+					return null;
+				}
+			};
+			for (Node regex : regexes)
+				regex.accept(boundaries);
+			cuts = new int[set.size()];
+			int i = 0;
+			for (int cut : set)
+				cuts[i++] = cut;
+			for (int c = 0; c < 256; c++)
+				latin1[c] = search(c);
+		}
+		// The classes given by their boundaries, as saved by a Table
+		Alphabet(int[] cuts) {
+			this.cuts = cuts;
+			for (int c = 0; c < 256; c++)
+				latin1[c] = search(c);
+		}
+		private int search(int c) {
+			int lo = 0, hi = cuts.length - 2;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (cuts[mid] <= c)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			return lo;
+		}
+		public int classOf(char c) {
+			return (c < 256) ? latin1[c] : search(c);
+		}
+		// Number of classes
+		public int size() {
+			return cuts.length - 1;
+		}
+		// Some char of class i, to derive with
+		public char representative(int i) {
+			return (char) cuts[i];
+		}
+		// The last char of class i
+		public char last(int i) {
+			return (char) (cuts[i + 1] - 1);
+		}
+	}
+	// Matches very long inputs on every core.
+	// The input is cut into chunks, and each chunk is run from every state at once, giving a map from the
+	// state the chunk starts in to the state it ends in. The maps are composed two by two as the fork/join
+	// tasks return, and the whole input matches if the composed map takes the start state to an accepting one.
+	// Runs of states that end up the same are only stepped once, so this is cheap once the states converge.
+	// It needs the complete Table (which never changes, so threads can share it); short inputs are matched as usual.
+	public static class ParallelMatcher implements Recognizer {
+		private final Table table;
+		private final ForkJoinPool pool;
+		// Inputs shorter than this are matched sequentially, and chunks are about this long
+		private final int chunk;
+
+		public ParallelMatcher(Table table) {
+			this(table, ForkJoinPool.commonPool(), 1 << 20);
+		}
+		public ParallelMatcher(Table table, ForkJoinPool pool, int chunk) {
+			this.table = table;
+			this.pool = pool;
+			this.chunk = chunk;
+		}
+		@Override
+		public boolean matches(CharSequence string) {
+			if (string.length() < 2 * chunk || pool.getParallelism() < 2)
+				return table.matches(string);
+			int[] map = pool.invoke(new Chunk(string, 0, string.length()));
+			Metrics.transitions.add(string.length());
+			return table.accepts(map[table.start]);
+		}
+		private class Chunk extends RecursiveTask<int[]> {
+			private static final long serialVersionUID = 1L;
+			private final CharSequence string;
+			private final int from, to;
+			Chunk(CharSequence string, int from, int to) {
+				this.string = string;
+				this.from = from;
+				this.to = to;
+			}
+			@Override
+			protected int[] compute() {
+				if (to - from <= chunk)
+					return run();
+				int middle = (from + to) >>> 1;
+				Chunk left = new Chunk(string, from, middle);
+				left.fork();
+				int[] second = new Chunk(string, middle, to).compute();
+				int[] first = left.join();
+				// Going through the first half, then the second
+				for (int s = 0; s < first.length; s++)
+					first[s] = second[first[s]];
+				return first;
+			}
+			// Step every state through the chunk at once
+			private int[] run() {
+				int n = table.states;
+				// The distinct states reached so far, and which of them each start state is in
+				int[] active = new int[n], index = new int[n];
+				int[] seen = new int[n], remap = new int[n];
+				Arrays.fill(seen, -1);
+				for (int s = 0; s < n; s++)
+					active[s] = index[s] = s;
+				int count = n;
+				for (int i = from; i < to; i++) {
+					char c = string.charAt(i);
+					for (int j = 0; j < count; j++)
+						active[j] = table.step(active[j], c);
+					// Every so often, merge the states that are the same now
+					if (((i - from) & 63) == 63 || i == to - 1) {
+						int distinct = 0;
+						for (int j = 0; j < count; j++) {
+							int state = active[j];
+							if (seen[state] < 0) {
+								seen[state] = distinct;
+								active[distinct++] = state;
+							}
+							remap[j] = seen[state];
+						}
+						for (int j = 0; j < distinct; j++)
+							seen[active[j]] = -1;
+						for (int s = 0; s < n; s++)
+							index[s] = remap[index[s]];
+						count = distinct;
+					}
+				}
+				int[] map = new int[n];
+				for (int s = 0; s < n; s++)
+					map[s] = (to > from) ? active[index[s]] : s;
+				return map;
+			}
+		}
+	}
+	// Matches one regex against a batch of strings, on every core.
+	// The regex is compiled once, to the minimal Table when it has few enough states: a Table never changes,
+	// so all the threads share it and a string costs one table lookup per char, with nothing allocated.
+	// Bigger regexes get a BoundedDFA, which the threads share and build up as they go, within its memory budget.
+	// Bit i of the result tells whether the i-th string matches.
+	public static class Batch {
+		private final Recognizer recognizer;
+		private final ForkJoinPool pool;
+		// Strings per task; tasks own whole words of the result, so they never write the same word
+		private static final int GRAIN = 1 << 10;
+
+		public Batch(Node regex) {
+			this(regex, ForkJoinPool.commonPool(), 1 << 12);
+		}
+		// Use the Table if the regex has at most maxStates states
+		public Batch(Node regex, ForkJoinPool pool, int maxStates) {
+			Recognizer recognizer;
+			try {
+				recognizer = Table.of(compile(regex), maxStates);
+			} catch (IllegalStateException e) {
+				recognizer = new BoundedDFA(regex);
+			}
+			this.recognizer = recognizer;
+			this.pool = pool;
+		}
+		public BitSet matchAll(Collection<? extends CharSequence> strings) {
+			CharSequence[] array = strings.toArray(new CharSequence[strings.size()]);
+			long[] words = new long[(array.length + 63) >>> 6];
+			if (array.length <= GRAIN || pool.getParallelism() < 2)
+				new Slice(array, words, 0, array.length).compute();
+			else
+				pool.invoke(new Slice(array, words, 0, array.length));
+			return BitSet.valueOf(words);
+		}
+		// A sequential stream is matched as it goes, a parallel one is collected first
+		public BitSet matchAll(Stream<? extends CharSequence> strings) {
+			if (strings.isParallel())
+				return matchAll(strings.collect(Collectors.toList()));
+			BitSet result = new BitSet();
+			int i = 0;
+			for (Iterator<? extends CharSequence> it = strings.iterator(); it.hasNext(); i++)
+				if (recognizer.matches(it.next()))
+					result.set(i);
+			return result;
+		}
+		// Match strings[from..to) into words, splitting in halves on 64 string boundaries
+		private class Slice extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final CharSequence[] strings;
+			private final long[] words;
+			private final int from, to;
+			Slice(CharSequence[] strings, long[] words, int from, int to) {
+				this.strings = strings;
+				this.words = words;
+				this.from = from;
+				this.to = to;
+			}
+			@Override
+			protected void compute() {
+				if (to - from > GRAIN) {
+					int middle = ((from + to) >>> 1) & ~63;
+					invokeAll(new Slice(strings, words, from, middle), new Slice(strings, words, middle, to));
+					return;
+				}
+				for (int i = from; i < to; i++)
+					if (recognizer.matches(strings[i]))
+						words[i >>> 6] |= 1L << i;
+			}
+		}
+	}
+	// Anything that tells whether a whole string matches a regex
+	public interface Recognizer {
+		boolean matches(CharSequence string);
+	}
+	// Lazy DFA built from derivatives.
+	// Every distinct derivative (an interned Node) is a state. A transition is computed with Derivative
+	// the first time a (state, char class) pair is seen and then cached, so a warm match is two array lookups per char.
+	// Any number of threads can match with one DFA. Cached transitions are read without locking: a transition is
+	// stored (with release) only once the state it leads to is complete, and read with acquire, so a thread that
+	// sees a transition sees its target state too. Adding a state takes the DFA's lock, deriving does not.
+	public static class DFA implements Recognizer {
+		private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+		public final Alphabet alphabet;
+		// State number of each derivative seen so far (guarded by this)
+		private final HashMap<Node, Integer> ids = new HashMap<Node, Integer>();
+		private volatile States states = new States(16);
+		private volatile int count;
+		// Debugging hooks, null (and free) unless trace was called
+		private volatile Tracer tracer;
+		public final int start;
+		private volatile ByteDFA bytes;
+
+		// The states, their accept bits and their transitions, one row per state with one entry per char class.
+		// -1 means not computed yet. When full, a bigger copy replaces it; the rows themselves are shared by the copies,
+		// and a thread still using an old copy finds in it every state numbered below its length.
+		private static class States {
+			final Node[] nodes;
+			final boolean[] accept;
+			final int[][] next;
+			States(int capacity) {
+				nodes = new Node[capacity];
+				accept = new boolean[capacity];
+				next = new int[capacity][];
+			}
+			States(States old, int capacity) {
+				nodes = Arrays.copyOf(old.nodes, capacity);
+				accept = Arrays.copyOf(old.accept, capacity);
+				next = Arrays.copyOf(old.next, capacity);
+			}
+		}
+
+		public DFA(Node regex) {
+			alphabet = new Alphabet(regex);
+			start = state(regex);
+		}
+		// Report what the DFA does to tracer (null to stop)
+		public DFA trace(Tracer tracer) {
+			this.tracer = tracer;
+			if (tracer != null)
+				for (int i = 0; i < count; i++)
+					tracer.stateEntered(this, i);
+			return this;
+		}
+		// Look up (or add) the state for a derivative
+		private synchronized int state(Node node) {
+			Integer id = ids.get(node);
+			if (id != null)
+				return id;
+			States states = this.states;
+			if (count == states.nodes.length)
+				states = new States(states, count * 2);
+			int[] row = new int[alphabet.size()];
+			Arrays.fill(row, -1);
+			states.nodes[count] = node;
+			states.accept[count] = node.nullable;
+			states.next[count] = row;
+			this.states = states;
+			ids.put(node, count);
+			count++;
+			Metrics.stateAdded(this, count);
+			Tracer tracer = this.tracer;
+			if (tracer != null)
+				tracer.stateEntered(this, count - 1);
+			return count - 1;
+		}
+		// Follow the transition from state on c, deriving it on a cache miss
+		public int step(int state, char c) {
+			int charClass = alphabet.classOf(c);
+			int target = (int) ENTRY.getAcquire(states.next[state], charClass);
+			if (target < 0) {
+				Metrics.misses.increment();
+				target = miss(state, charClass);
+			}
+			Tracer tracer = this.tracer;
+			if (tracer != null)
+				tracer.transitionTaken(this, state, c, target);
+			return target;
+		}
+		// Same, for automata built on this one (such as ByteDFA): the transitions they build are not matching,
+		// so they are not counted in Metrics
+		int target(int state, char c) {
+			int charClass = alphabet.classOf(c);
+			int target = (int) ENTRY.getAcquire(states.next[state], charClass);
+			return (target >= 0) ? target : miss(state, charClass);
+		}
+		// Two threads missing the same transition both derive it, and get the same (interned) state
+		private int miss(int state, int charClass) {
+			char c = alphabet.representative(charClass);
+			Tracer tracer = this.tracer;
+			if (tracer != null)
+				tracer.cacheMiss(this, state, c);
+			int target = state(Derivative.derive(states.nodes[state], c));
+			ENTRY.setRelease(states.next[state], charClass, target);
+			return target;
+		}
+		public boolean accepts(int state) {
+			return states.accept[state];
+		}
+		// Nothing can match from a dead state, whatever comes next
+		public boolean dead(int state) {
+			return states.nodes[state] == EmptySet.getInstance();
+		}
+		// The derivative a state stands for
+		public Node node(int state) {
+			return states.nodes[state];
+		}
+		// Number of states built so far
+		public int size() {
+			return count;
+		}
+		@Override
+		public boolean matches(CharSequence string) {
+			int state = start, i = 0;
+			if (tracer != null) {
+				for (; i < string.length() && !dead(state); i++)
+					state = step(state, string.charAt(i));
+				Metrics.transitions.add(i);
+				return accepts(state);
+			}
+			// Same thing, with the states kept in a local until a transition leads past them
+			States states = this.states;
+			Node dead = EmptySet.getInstance();
+			for (; i < string.length() && states.nodes[state] != dead; i++) {
+				int charClass = alphabet.classOf(string.charAt(i));
+				int target = (int) ENTRY.getAcquire(states.next[state], charClass);
+				if (target < 0) {
+					Metrics.misses.increment();
+					target = miss(state, charClass);
+				}
+				if (target >= states.nodes.length)
+					states = this.states;
+				state = target;
+			}
+			Metrics.transitions.add(i);
+			return states.accept[state];
+		}
+		// Build every state and transition now instead of as they are needed
+		public DFA explore() {
+			return explore(Integer.MAX_VALUE);
+		}
+		// Same, but give up with an IllegalStateException past maxStates states
+		// (a DFA can have exponentially many states, such as for (a|b)*a(a|b)(a|b)...(a|b))
+		public DFA explore(int maxStates) {
+			for (int state = 0; state < count; state++) {
+				for (int charClass = 0; charClass < alphabet.size(); charClass++)
+					if (cached(state, charClass) < 0)
+						miss(state, charClass);
+				if (count > maxStates)
+					throw new IllegalStateException("More than " + maxStates + " states");
+			}
+			return this;
+		}
+		// Target of a transition that is built already (or -1)
+		int cached(int state, int charClass) {
+			return (int) ENTRY.getAcquire(states.next[state], charClass);
+		}
+		// A matcher to feed input to bit by bit
+		public Matcher matcher() {
+			return new Matcher(this);
+		}
+		// The same regex, over UTF-8 bytes (made once, and shared)
+		public ByteDFA bytes() {
+			ByteDFA bytes = this.bytes;
+			if (bytes == null) {
+				synchronized (this) {
+					if (this.bytes == null)
+						this.bytes = new ByteDFA(this);
+					bytes = this.bytes;
+				}
+			}
+			return bytes;
+		}
+	}
+	// Lazy DFA with a memory budget for its cached states and transitions, for regexes with so many derivatives
+	// that caching them all could run out of memory. When the cache is full, it is cleared and rebuilt from the
+	// states matching needs from then on. If caches keep filling up with states that are hardly used
+	// (thrashing), caching is not worth it, and matching derives the regex char by char instead, which only
+	// needs memory for one derivative. Both are reported to Metrics (and JFR).
+	// Unlike DFA, it has no state numbers that last, since a state is forgotten when its cache is cleared.
+	public static class BoundedDFA implements Recognizer {
+		private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+		public static final long DEFAULT_BUDGET = 64L << 20;
+		// A cache that matched fewer chars than this per state it built was thrashing
+		private static final int MIN_CHARS_PER_STATE = 10;
+		// Stop caching after this many thrashing caches in a row
+		private static final int MAX_THRASHING = 3;
+		public final Alphabet alphabet;
+		private final Node regex;
+		private final long budget;
+		// Estimated bytes per cached state: its row, and its slots in the arrays and in the map
+		private final long stateBytes;
+		private volatile Cache cache;
+		private volatile boolean fallback;
+		// Caches cleared, and thrashing caches in a row (guarded by this)
+		private int flushes, thrashing;
+		// Chars matched with the current cache
+		private final LongAdder chars = new LongAdder();
+
+		// The states of one cache, laid out as in DFA. State 0 is the regex itself.
+		private static class Cache {
+			final HashMap<Node, Integer> ids = new HashMap<Node, Integer>();
+			volatile DFA.States states = new DFA.States(16);
+			int count;
+		}
+
+		public BoundedDFA(Node regex) {
+			this(regex, DEFAULT_BUDGET);
+		}
+		// budget is in bytes; a cache always has room for a few states, whatever the budget
+		public BoundedDFA(Node regex, long budget) {
+			alphabet = new Alphabet(regex);
+			this.regex = regex;
+			this.budget = budget;
+			stateBytes = 4L * alphabet.size() + 96;
+			cache = new Cache();
+			add(cache, regex);
+		}
+		// The state for node in cache, or -1 if the cache is full (call with the lock held)
+		private int add(Cache cache, Node node) {
+			Integer id = cache.ids.get(node);
+			if (id != null)
+				return id;
+			if (cache.count >= 2 && (cache.count + 1) * stateBytes > budget)
+				return -1;
+			DFA.States states = cache.states;
+			if (cache.count == states.nodes.length)
+				states = new DFA.States(states, cache.count * 2);
+			int[] row = new int[alphabet.size()];
+			Arrays.fill(row, -1);
+			states.nodes[cache.count] = node;
+			states.accept[cache.count] = node.nullable;
+			states.next[cache.count] = row;
+			cache.states = states;
+			cache.ids.put(node, cache.count);
+			Metrics.states.increment();
+			return cache.count++;
+		}
+		// Clear the full cache, or stop caching if it was thrashing (call with the lock held)
+		private void flush() {
+			long matched = chars.sumThenReset();
+			int built = cache.count;
+			thrashing = (matched < (long) MIN_CHARS_PER_STATE * built) ? thrashing + 1 : 0;
+			flushes++;
+			fallback = thrashing >= MAX_THRASHING;
+			cache = new Cache();
+			add(cache, regex);
+			Metrics.flushed(regex, built, matched, fallback);
+		}
+		@Override
+		public boolean matches(CharSequence string) {
+			if (fallback)
+				return derive(regex, string, 0);
+			Cache cache = this.cache;
+			DFA.States states = cache.states;
+			Node dead = EmptySet.getInstance();
+			// Chars up to counted were added to chars already
+			int state = 0, i = 0, counted = 0;
+			for (; i < string.length() && states.nodes[state] != dead; i++) {
+				int charClass = alphabet.classOf(string.charAt(i));
+				int target = (int) ENTRY.getAcquire(states.next[state], charClass);
+				if (target < 0) {
+					Node next = Derivative.derive(states.nodes[state], alphabet.representative(charClass));
+					Metrics.misses.increment();
+					chars.add(i - counted);
+					counted = i;
+					synchronized (this) {
+						if (cache == this.cache && (target = add(cache, next)) >= 0)
+							ENTRY.setRelease(states.next[state], charClass, target);
+						else {
+							// Start over from next in a new cache (cleared by this thread or another one)
+							if (cache == this.cache)
+								flush();
+							cache = this.cache;
+							target = fallback ? -1 : add(cache, next);
+						}
+					}
+					if (target < 0)
+						return derive(next, string, i + 1);
+					states = cache.states;
+				} else if (target >= states.nodes.length)
+					states = cache.states;
+				state = target;
+			}
+			Metrics.transitions.add(i);
+			chars.add(i - counted);
+			return states.accept[state];
+		}
+		// Match the rest of string from node, one derivative at a time
+		private static boolean derive(Node node, CharSequence string, int from) {
+			for (int i = from; i < string.length() && node != EmptySet.getInstance(); i++)
+				node = Derivative.derive(node, string.charAt(i));
+			return node.nullable;
+		}
+		// Has caching been given up?
+		public boolean fallback() {
+			return fallback;
+		}
+		public synchronized int flushes() {
+			return flushes;
+		}
+		// States in the current cache
+		public synchronized int size() {
+			return cache.count;
+		}
+	}
+	// Lazy DFA over the UTF-8 bytes of the input, to match bytes without decoding them to chars first.
+	// A state is a state of the char DFA and the bits of a char whose bytes are partly read. As soon as the bytes
+	// read tell which char class the char is in, the char DFA steps on it (on both halves of the surrogate pair
+	// for chars above U+FFFF), so a partial char only adds states while the regex still cares which char it is.
+	// As with DFA, states and transitions are built as they are needed, and threads can share them.
+	// Malformed UTF-8 (overlong forms, surrogates, stray continuation bytes) never matches.
+	public static class ByteDFA {
+		private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+		public final DFA dfa;
+		// State number of each (char state, pending bits) seen so far (guarded by this)
+		private final HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+		private volatile States states = new States(16);
+		private volatile int count;
+		public final int start;
+		// Where malformed input goes
+		private final int malformed;
+
+		// Like DFA.States, with one transition per byte value
+		private static class States {
+			// The char DFA state (-1 for malformed), and what is left of the char being read: 0 between chars,
+			// its bits so far << 5 | its length in bytes << 2 | bytes still to read while it is being read,
+			// or only the bytes to skip once the char DFA has stepped on it (see partial)
+			final int[] chars, pending;
+			final boolean[] accept, dead;
+			final int[][] next;
+			States(int capacity) {
+				chars = new int[capacity];
+				pending = new int[capacity];
+				accept = new boolean[capacity];
+				dead = new boolean[capacity];
+				next = new int[capacity][];
+			}
+			States(States old, int capacity) {
+				chars = Arrays.copyOf(old.chars, capacity);
+				pending = Arrays.copyOf(old.pending, capacity);
+				accept = Arrays.copyOf(old.accept, capacity);
+				dead = Arrays.copyOf(old.dead, capacity);
+				next = Arrays.copyOf(old.next, capacity);
+			}
+		}
+
+		public ByteDFA(DFA dfa) {
+			this.dfa = dfa;
+			start = state(dfa.start, 0);
+			malformed = state(-1, 0);
+		}
+		private synchronized int state(int charState, int pending) {
+			Long key = ((long) charState << 32) | pending;
+			Integer id = ids.get(key);
+			if (id != null)
+				return id;
+			States states = this.states;
+			if (count == states.chars.length)
+				states = new States(states, count * 2);
+			int[] row = new int[256];
+			Arrays.fill(row, -1);
+			states.chars[count] = charState;
+			states.pending[count] = pending;
+			states.accept[count] = charState >= 0 && pending == 0 && dfa.accepts(charState);
+			states.dead[count] = charState < 0 || dfa.dead(charState);
+			states.next[count] = row;
+			this.states = states;
+			ids.put(key, count);
+			return count++;
+		}
+		// Follow the transition from state on byte b (0 to 255)
+		public int step(int state, int b) {
+			int target = (int) ENTRY.getAcquire(states.next[state], b);
+			return (target < 0) ? miss(state, b) : target;
+		}
+		private int miss(int state, int b) {
+			States states = this.states;
+			int charState = states.chars[state], pending = states.pending[state];
+			int target = (charState < 0) ? malformed : next(charState, pending >>> 5, (pending >>> 2) & 7, pending & 3, b);
+			ENTRY.setRelease(states.next[state], b, target);
+			return target;
+		}
+		private int next(int charState, int bits, int length, int left, int b) {
+			if (left == 0) {
+				if (b < 0x80)
+					return state(dfa.target(charState, (char) b), 0);
+				if (b >= 0xC2 && b <= 0xDF)
+					return partial(charState, b & 0x1F, 2, 1);
+				if (b >= 0xE0 && b <= 0xEF)
+					return partial(charState, b & 0x0F, 3, 2);
+				if (b >= 0xF0 && b <= 0xF4)
+					return partial(charState, b & 0x07, 4, 3);
+				return malformed;
+			}
+			if ((b & 0xC0) != 0x80)
+				return malformed;
+			// Where the char goes is known already, only skip its last bytes
+			if (length == 0)
+				return state(charState, left - 1);
+			return partial(charState, bits << 6 | (b & 0x3F), length, left - 1);
+		}
+		// Some bytes of a char of length bytes are read, giving its first bits, and left bytes are to come.
+		// Once every char it can still be is well formed and in the same class, step the char DFA right away,
+		// so the bytes left only need skipping and many partial chars share a state.
+		private int partial(int charState, int bits, int length, int left) {
+			int lo = bits << (6 * left), hi = lo | ((1 << (6 * left)) - 1);
+			int min = (length == 2) ? 0x80 : (length == 3) ? 0x800 : 0x10000;
+			if (hi < min || lo > Character.MAX_CODE_POINT || (lo >= 0xD800 && hi <= 0xDFFF))
+				return malformed;
+			if (lo < min || hi > Character.MAX_CODE_POINT || (lo <= 0xDFFF && hi >= 0xD800))
+				return state(charState, bits << 5 | length << 2 | left);
+			int target = step(charState, lo, hi);
+			if (target < 0)
+				return state(charState, bits << 5 | length << 2 | left);
+			return state(target, left);
+		}
+		// The char state after any char from lo to hi, or -1 if they do not all go to the same state
+		private int step(int charState, int lo, int hi) {
+			Alphabet alphabet = dfa.alphabet;
+			if (hi < 0x10000) {
+				if (alphabet.classOf((char) lo) != alphabet.classOf((char) hi))
+					return -1;
+				return dfa.target(charState, (char) lo);
+			}
+			char highLo = Character.highSurrogate(lo), highHi = Character.highSurrogate(hi);
+			char lowLo = (highLo == highHi) ? Character.lowSurrogate(lo) : Character.MIN_LOW_SURROGATE;
+			char lowHi = (highLo == highHi) ? Character.lowSurrogate(hi) : Character.MAX_LOW_SURROGATE;
+			if (alphabet.classOf(highLo) != alphabet.classOf(highHi) || alphabet.classOf(lowLo) != alphabet.classOf(lowHi))
+				return -1;
+			return dfa.target(dfa.target(charState, highLo), lowLo);
+		}
+		public boolean accepts(int state) {
+			return states.accept[state];
+		}
+		public boolean dead(int state) {
+			return states.dead[state];
+		}
+		// Number of states built so far
+		public int size() {
+			return count;
+		}
+		// The state after bytes[from..to), starting from state
+		public int run(int state, byte[] bytes, int from, int to) {
+			States states = this.states;
+			int i = from;
+			for (; i < to && !states.dead[state]; i++) {
+				int b = bytes[i] & 0xFF;
+				int target = (int) ENTRY.getAcquire(states.next[state], b);
+				if (target < 0) {
+					Metrics.misses.increment();
+					target = miss(state, b);
+				}
+				if (target >= states.chars.length)
+					states = this.states;
+				state = target;
+			}
+			Metrics.transitions.add(i - from);
+			return state;
+		}
+		// Same, for the bytes from index from to index to of a buffer (its position and limit do not matter)
+		public int run(int state, ByteBuffer bytes, int from, int to) {
+			if (bytes.hasArray())
+				return run(state, bytes.array(), bytes.arrayOffset() + from, bytes.arrayOffset() + to);
+			States states = this.states;
+			int i = from;
+			for (; i < to && !states.dead[state]; i++) {
+				int b = bytes.get(i) & 0xFF;
+				int target = (int) ENTRY.getAcquire(states.next[state], b);
+				if (target < 0) {
+					Metrics.misses.increment();
+					target = miss(state, b);
+				}
+				if (target >= states.chars.length)
+					states = this.states;
+				state = target;
+			}
+			Metrics.transitions.add(i - from);
+			return state;
+		}
+		public boolean matches(byte[] bytes) {
+			return matches(bytes, 0, bytes.length);
+		}
+		public boolean matches(byte[] bytes, int offset, int length) {
+			return accepts(run(start, bytes, offset, offset + length));
+		}
+		// Match the bytes remaining in a buffer, such as a MappedByteBuffer
+		public boolean matches(ByteBuffer bytes) {
+			return accepts(run(start, bytes, bytes.position(), bytes.limit()));
+		}
+		// Match the contents of a file, mapped into memory a region at a time (a char may span two regions)
+		public boolean matches(Path file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				int state = start;
+				for (long position = 0; position < size && !dead(state); position += Integer.MAX_VALUE) {
+					MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(Integer.MAX_VALUE, size - position));
+					state = run(state, region, 0, region.limit());
+				}
+				return accepts(state);
+			}
+		}
+	}
+	// A complete, minimal DFA in a flat transition table, that can be saved to a file and mapped back into memory.
+	// Transitions and accept bits are read straight from an IntBuffer, so a mapped table needs no parsing or derivatives.
+	//
+	// File format (big endian ints):
+	// magic, version, states, classes, start, dead state (or -1),
+	// classes + 1 class boundaries (see Alphabet),
+	// (states + 31) / 32 words of accept bits,
+	// states * classes transitions, row by row.
+	public static class Table implements Recognizer {
+		private static final int MAGIC = 0x52444641; // RDFA
+		private static final int VERSION = 1;
+		private static final int HEADER = 6;
+		public final Alphabet alphabet;
+		public final int states, classes, start, dead;
+		private final IntBuffer accept, transitions;
+
+		private Table(Alphabet alphabet, int states, int start, int dead, IntBuffer accept, IntBuffer transitions) {
+			this.alphabet = alphabet;
+			this.states = states;
+			this.classes = alphabet.size();
+			this.start = start;
+			this.dead = dead;
+			this.accept = accept;
+			this.transitions = transitions;
+		}
+		// Build every state of dfa and minimize it
+		public static Table of(DFA dfa) {
+			return of(dfa, 1 << 16);
+		}
+		// Same, but give up with an IllegalStateException past maxStates states
+		public static Table of(DFA dfa, int maxStates) {
+			long then = System.nanoTime();
+			dfa.explore(maxStates);
+			int n = dfa.size(), k = dfa.alphabet.size();
+			int[] delta = new int[n * k];
+			boolean[] accepting = new boolean[n];
+			for (int s = 0; s < n; s++) {
+				accepting[s] = dfa.accepts(s);
+				for (int a = 0; a < k; a++)
+					delta[s * k + a] = dfa.cached(s, a);
+			}
+			int[] block = minimize(n, k, delta, accepting);
+			int blocks = 0;
+			for (int b : block)
+				blocks = Math.max(blocks, b + 1);
+			int[] table = new int[blocks * k];
+			int[] bits = new int[(blocks + 31) / 32];
+			for (int s = 0; s < n; s++) {
+				for (int a = 0; a < k; a++)
+					table[block[s] * k + a] = block[delta[s * k + a]];
+				if (accepting[s])
+					bits[block[s] >>> 5] |= 1 << block[s];
+			}
+			int dead = -1;
+			for (int s = 0; s < n; s++)
+				if (dfa.dead(s))
+					dead = block[s];
+			Metrics.compiled("table", dfa.node(dfa.start), blocks, System.nanoTime() - then);
+			return new Table(dfa.alphabet, blocks, block[dfa.start], dead, IntBuffer.wrap(bits), IntBuffer.wrap(table));
+		}
+		// Hopcroft's algorithm: start from accepting / not accepting, and split blocks until every state of
+		// a block goes to the same block on every class. Returns the block of each state.
+		static int[] minimize(int n, int k, int[] delta, boolean[] accepting) {
+			// Sources of the transitions into each state on each class, as lists in one array
+			int[] inverseStart = new int[n * k + 1];
+			for (int s = 0; s < n; s++)
+				for (int a = 0; a < k; a++)
+					inverseStart[a * n + delta[s * k + a] + 1]++;
+			for (int i = 0; i < n * k; i++)
+				inverseStart[i + 1] += inverseStart[i];
+			int[] inverse = new int[n * k];
+			int[] fill = Arrays.copyOf(inverseStart, n * k);
+			for (int s = 0; s < n; s++)
+				for (int a = 0; a < k; a++)
+					inverse[fill[a * n + delta[s * k + a]]++] = s;
+			// The blocks are ranges of elements: block b is elements[first[b]..past[b])
+			int[] elements = new int[n], location = new int[n], block = new int[n];
+			int[] first = new int[n], past = new int[n], marked = new int[n];
+			int size = 0;
+			for (int s = 0; s < n; s++)
+				if (accepting[s])
+					elements[size++] = s;
+			int split = size;
+			for (int s = 0; s < n; s++)
+				if (!accepting[s])
+					elements[size++] = s;
+			int blocks = 0;
+			if (split > 0) {
+				first[blocks] = 0;
+				past[blocks++] = split;
+			}
+			if (split < n) {
+				first[blocks] = split;
+				past[blocks++] = n;
+			}
+			for (int i = 0; i < n; i++) {
+				location[elements[i]] = i;
+				block[elements[i]] = (split > 0 && i < split) ? 0 : blocks - 1;
+			}
+			// Splitters still to process, as (block, class) pairs
+			ArrayDeque<long[]> work = new ArrayDeque<long[]>();
+			boolean[][] waiting = new boolean[n][];
+			for (int b = 0; b < blocks; b++)
+				waiting[b] = new boolean[k];
+			int smaller = (blocks == 2 && past[1] - first[1] < past[0] - first[0]) ? 1 : 0;
+			for (int a = 0; a < k; a++) {
+				work.add(new long[] { smaller, a });
+				waiting[smaller][a] = true;
+			}
+			int[] touched = new int[n], splitter = new int[n];
+			while (!work.isEmpty()) {
+				long[] pair = work.poll();
+				int b = (int) pair[0], a = (int) pair[1];
+				waiting[b][a] = false;
+				int length = past[b] - first[b];
+				System.arraycopy(elements, first[b], splitter, 0, length);
+				// Mark every state going into b on a, moving it to the front of its block
+				int touchedCount = 0;
+				for (int i = 0; i < length; i++) {
+					int t = splitter[i];
+					for (int j = inverseStart[a * n + t]; j < inverseStart[a * n + t + 1]; j++) {
+						int s = inverse[j], c = block[s];
+						int to = first[c] + marked[c];
+						if (location[s] < to)
+							continue; // marked already
+						int other = elements[to];
+						elements[to] = s;
+						elements[location[s]] = other;
+						location[other] = location[s];
+						location[s] = to;
+						if (marked[c]++ == 0)
+							touched[touchedCount++] = c;
+					}
+				}
+				// Split each touched block into its marked and unmarked states
+				for (int i = 0; i < touchedCount; i++) {
+					int c = touched[i];
+					int m = marked[c];
+					marked[c] = 0;
+					if (m == past[c] - first[c])
+						continue;
+					int d = blocks++;
+					waiting[d] = new boolean[k];
+					first[d] = first[c];
+					past[d] = first[c] + m;
+					first[c] = past[d];
+					for (int j = first[d]; j < past[d]; j++)
+						block[elements[j]] = d;
+					for (int x = 0; x < k; x++) {
+						int add = (waiting[c][x] || past[d] - first[d] <= past[c] - first[c]) ? d : c;
+						if (!waiting[add][x]) {
+							waiting[add][x] = true;
+							work.add(new long[] { add, x });
+						}
+					}
+				}
+			}
+			return block;
+		}
+		public int step(int state, char c) {
+			return transitions.get(state * classes + alphabet.classOf(c));
+		}
+		// Where state goes on any char of a class
+		public int target(int state, int charClass) {
+			return transitions.get(state * classes + charClass);
+		}
+		public boolean accepts(int state) {
+			return (accept.get(state >>> 5) & (1 << state)) != 0;
+		}
+		@Override
+		public boolean matches(CharSequence string) {
+			int state = start, i = 0;
+			for (; i < string.length() && state != dead; i++)
+				state = step(state, string.charAt(i));
+			Metrics.transitions.add(i);
+			return accepts(state);
+		}
+		// Number of states
+		public int size() {
+			return states;
+		}
+		public void write(Path path) throws IOException {
+			int words = HEADER + alphabet.cuts.length + accept.limit() + transitions.limit();
+			ByteBuffer bytes = ByteBuffer.allocate(4 * words);
+			IntBuffer ints = bytes.asIntBuffer();
+			ints.put(MAGIC).put(VERSION).put(states).put(classes).put(start).put(dead);
+			ints.put(alphabet.cuts);
+			for (int i = 0; i < accept.limit(); i++)
+				ints.put(accept.get(i));
+			for (int i = 0; i < transitions.limit(); i++)
+				ints.put(transitions.get(i));
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+			}
+		}
+		// Map a saved table into memory. The transitions stay in the mapped file.
+		// Every state number in it is checked, so a damaged file fails here, with an IOException, and not while matching.
+		public static Table load(Path path) throws IOException {
+			MappedByteBuffer bytes;
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			IntBuffer ints = bytes.asIntBuffer();
+			if (ints.limit() < HEADER || ints.get(0) != MAGIC || ints.get(1) != VERSION)
+				throw new IOException("Not a compiled regex table: " + path);
+			int states = ints.get(2), classes = ints.get(3), start = ints.get(4), dead = ints.get(5);
+			if (classes < 1 || start < 0 || start >= states || dead < -1 || dead >= states)
+				throw new IOException("Damaged compiled regex table: " + path);
+			int words = (int) ((states + 31L) / 32);
+			if (ints.limit() != HEADER + classes + 1L + words + (long) states * classes)
+				throw new IOException("Truncated compiled regex table: " + path);
+			int[] cuts = new int[classes + 1];
+			ints.position(HEADER);
+			ints.get(cuts);
+			// The classes must cover all the chars, in order
+			if (cuts[0] != 0 || cuts[classes] != Character.MAX_VALUE + 1)
+				throw new IOException("Damaged compiled regex table: " + path);
+			for (int i = 0; i < classes; i++)
+				if (cuts[i] >= cuts[i + 1])
+					throw new IOException("Damaged compiled regex table: " + path);
+			IntBuffer accept = ints.slice();
+			accept.limit(words);
+			ints.position(HEADER + cuts.length + words);
+			IntBuffer transitions = ints.slice();
+			for (int i = 0; i < transitions.limit(); i++)
+				if (transitions.get(i) < 0 || transitions.get(i) >= states)
+					throw new IOException("Damaged compiled regex table: " + path);
+			return new Table(new Alphabet(cuts), states, start, dead, accept, transitions);
+		}
+	}
+	// Listener for what a DFA does. Attach one with DFA.trace; without one, matching does no tracing work.
+	public interface Tracer {
+		// A new state was built (its derivative is dfa.node(state))
+		void stateEntered(DFA dfa, int state);
+		// Matching went from one state to another on c
+		void transitionTaken(DFA dfa, int from, char c, int to);
+		// The transition from state on (the class of) c was not cached, so it is being derived
+		void cacheMiss(DFA dfa, int state, char c);
+	}
+	// Print out what the DFA does, the way match used to for debugging
+	public static class PrintTracer implements Tracer {
+		private final Printer printer = new Printer();
+		private final PrintStream out;
+		public PrintTracer(PrintStream out) {
+			this.out = out;
+		}
+		@Override
+		public void stateEntered(DFA dfa, int state) {
+			out.println("State " + state + ": " + dfa.node(state).accept(printer) + (dfa.accepts(state) ? " (accept)" : ""));
+		}
+		@Override
+		public void transitionTaken(DFA dfa, int from, char c, int to) {
+			out.println(from + " -" + c + "-> " + to);
+		}
+		@Override
+		public void cacheMiss(DFA dfa, int state, char c) {
+			out.println("Derivative of " + dfa.node(state).accept(printer) + " by " + c);
+		}
+	}
+	// What the engine does, for all regexes together, to watch for patterns that blow up.
+	// The counters are always on and cheap: they are bumped per derivative, per state and per compile,
+	// and once per call for the chars matched, never once per char.
+	// register() publishes them as the JMX MBean Regex:type=Metrics, and as a JFR event every second;
+	// JFR also records an event for every compile, whenever a DFA doubles past 1024 states,
+	// and whenever a BoundedDFA clears its cache.
+	public static class Metrics implements MetricsMBean {
+		static final LongAdder states = new LongAdder(), transitions = new LongAdder(), misses = new LongAdder();
+		static final LongAdder derivatives = new LongAdder(), derivativeSizes = new LongAdder();
+		static final LongAdder compiles = new LongAdder(), compileNanos = new LongAdder();
+		static final LongAdder flushes = new LongAdder(), fallbacks = new LongAdder();
+		private static final Metrics instance = new Metrics();
+		private static boolean registered;
+		// Derivatives per second over the last second, sampled by a timer (so that every reader sees the same rate),
+		// which starts with register or the first read
+		private static Timer sampler;
+		private static volatile double derivativesPerSecond;
+
+		private Metrics() {
+		}
+		public static Metrics getInstance() {
+			return instance;
+		}
+		// Publish the metrics through JMX and JFR (only the first call does anything)
+		public static synchronized void register() throws JMException {
+			if (registered)
+				return;
+			startSampler();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(instance, MetricsMBean.class),
+					new ObjectName("Regex:type=Metrics"));
+			FlightRecorder.addPeriodicEvent(StatisticsEvent.class, new Runnable() {
+				@Override
+				public void run() {
+					StatisticsEvent event = new StatisticsEvent();
+					event.interned = instance.getSymbolCount() + instance.getLiteralCount() + instance.getCharClassCount() + instance.getStarCount()
+							+ instance.getRepeatCount() + instance.getSequenceCount() + instance.getOrCount()
+							+ instance.getAndCount() + instance.getNotCount() + instance.getGroupCount();
+					event.states = instance.getDFAStates();
+					event.derivatives = instance.getDerivatives();
+					event.hitRate = instance.getTransitionHitRate();
+					event.averageDerivativeSize = instance.getAverageDerivativeSize();
+					event.commit();
+				}
+			});
+			registered = true;
+		}
+		private static synchronized void startSampler() {
+			if (sampler != null)
+				return;
+			sampler = new Timer("Regex metrics", true);
+			sampler.scheduleAtFixedRate(new TimerTask() {
+				private long lastDerivatives = derivatives.sum(), lastNanos = System.nanoTime();
+				@Override
+				public void run() {
+					long now = System.nanoTime(), count = derivatives.sum();
+					derivativesPerSecond = (count - lastDerivatives) * 1e9 / Math.max(1, now - lastNanos);
+					lastDerivatives = count;
+					lastNanos = now;
+				}
+			}, 1000, 1000);
+		}
+		static void derived(Node result) {
+			derivatives.increment();
+			derivativeSizes.add(result.size);
+		}
+		static void stateAdded(DFA dfa, int count) {
+			states.increment();
+			// 1024, 2048, 4096...
+			if (count >= 1024 && (count & (count - 1)) == 0) {
+				GrowthEvent event = new GrowthEvent();
+				if (event.shouldCommit()) {
+					event.regex = describe(dfa.node(dfa.start));
+					event.states = count;
+					event.commit();
+				}
+			}
+		}
+		static void compiled(String stage, Node regex, int states, long nanos) {
+			compiles.increment();
+			compileNanos.add(nanos);
+			CompileEvent event = new CompileEvent();
+			if (event.shouldCommit()) {
+				event.stage = stage;
+				event.regex = describe(regex);
+				event.states = states;
+				event.nanos = nanos;
+				event.commit();
+			}
+		}
+		static void flushed(Node regex, int states, long chars, boolean fallback) {
+			flushes.increment();
+			if (fallback)
+				fallbacks.increment();
+			FlushEvent event = new FlushEvent();
+			if (event.shouldCommit()) {
+				event.regex = describe(regex);
+				event.states = states;
+				event.chars = chars;
+				event.fallback = fallback;
+				event.commit();
+			}
+		}
+		// The regex as text, cut short for events
+		private static String describe(Node regex) {
+			String text = regex.accept(new Printer());
+			return (text.length() <= 200) ? text : text.substring(0, 200) + "...";
+		}
+		@Override
+		public int getSymbolCount() {
+			return Symbol.count();
+		}
+		@Override
+		public int getLiteralCount() {
+			return Literal.count();
+		}
+		@Override
+		public int getCharClassCount() {
+			return CharClass.count();
+		}
+		@Override
+		public int getStarCount() {
+			return Star.table().size();
+		}
+		@Override
+		public int getRepeatCount() {
+			return Repeat.table().size();
+		}
+		@Override
+		public int getSequenceCount() {
+			return Sequence.table().size();
+		}
+		@Override
+		public int getOrCount() {
+			return Or.table().size();
+		}
+		@Override
+		public int getAndCount() {
+			return And.table().size();
+		}
+		@Override
+		public int getNotCount() {
+			return Not.table().size() + 1;
+		}
+		@Override
+		public int getGroupCount() {
+			return Group.table().size();
+		}
+		@Override
+		public long getDFAStates() {
+			return states.sum();
+		}
+		@Override
+		public long getTransitionHits() {
+			return Math.max(0, transitions.sum() - misses.sum());
+		}
+		@Override
+		public long getTransitionMisses() {
+			return misses.sum();
+		}
+		@Override
+		public double getTransitionHitRate() {
+			long total = transitions.sum();
+			return (total == 0) ? 0 : (double) getTransitionHits() / total;
+		}
+		@Override
+		public long getDerivatives() {
+			return derivatives.sum();
+		}
+		@Override
+		public double getDerivativesPerSecond() {
+			startSampler();
+			return derivativesPerSecond;
+		}
+		@Override
+		public double getAverageDerivativeSize() {
+			long count = derivatives.sum();
+			return (count == 0) ? 0 : (double) derivativeSizes.sum() / count;
+		}
+		@Override
+		public long getCompiles() {
+			return compiles.sum();
+		}
+		@Override
+		public double getAverageCompileMillis() {
+			long count = compiles.sum();
+			return (count == 0) ? 0 : compileNanos.sum() / 1e6 / count;
+		}
+		@Override
+		public long getCacheFlushes() {
+			return flushes.sum();
+		}
+		@Override
+		public long getFallbacks() {
+			return fallbacks.sum();
+		}
+	}
+	// The JMX view of Metrics
+	public interface MetricsMBean {
+		// Interned nodes of each type (including some that are garbage but not purged yet)
+		int getSymbolCount();
+		int getLiteralCount();
+		int getCharClassCount();
+		int getStarCount();
+		int getRepeatCount();
+		int getSequenceCount();
+		int getOrCount();
+		int getAndCount();
+		int getNotCount();
+		int getGroupCount();
+		// States built by every DFA so far
+		long getDFAStates();
+		// Transitions taken while matching (by any engine) that were cached, and those that had to be derived.
+		// Building an automaton ahead of time (DFA.explore, Table.of) is not matching, and is not counted.
+		long getTransitionHits();
+		long getTransitionMisses();
+		double getTransitionHitRate();
+		long getDerivatives();
+		// Over the last second
+		double getDerivativesPerSecond();
+		// Nodes in the tree of a derivative, on average (see Node.size)
+		double getAverageDerivativeSize();
+		long getCompiles();
+		double getAverageCompileMillis();
+		// Caches of a BoundedDFA cleared for going over budget, and BoundedDFAs that stopped caching
+		long getCacheFlushes();
+		long getFallbacks();
+	}
+	@Name("Regex.Compile")
+	@Label("Regex Compile")
+	@Category("Regex")
+	@Description("A regex was compiled to a lazy DFA or a minimal table")
+	public static class CompileEvent extends Event {
+		@Label("Stage")
+		String stage;
+		@Label("Regex")
+		String regex;
+		@Label("States")
+		int states;
+		@Label("Nanoseconds")
+		long nanos;
+	}
+	@Name("Regex.Growth")
+	@Label("Regex DFA Growth")
+	@Category("Regex")
+	@Description("A lazy DFA doubled its number of states, past 1024")
+	public static class GrowthEvent extends Event {
+		@Label("Regex")
+		String regex;
+		@Label("States")
+		int states;
+	}
+	@Name("Regex.CacheFlush")
+	@Label("Regex Cache Flush")
+	@Category("Regex")
+	@Description("The cache of a BoundedDFA went over budget and was cleared, or given up for thrashing")
+	public static class FlushEvent extends Event {
+		@Label("Regex")
+		String regex;
+		@Label("States")
+		int states;
+		@Label("Chars Matched")
+		long chars;
+		@Label("Fallback")
+		boolean fallback;
+	}
+	@Name("Regex.Statistics")
+	@Label("Regex Statistics")
+	@Category("Regex")
+	@Period("1 s")
+	public static class StatisticsEvent extends Event {
+		@Label("Interned Nodes")
+		int interned;
+		@Label("DFA States")
+		long states;
+		@Label("Derivatives")
+		long derivatives;
+		@Label("Transition Hit Rate")
+		double hitRate;
+		@Label("Average Derivative Size")
+		double averageDerivativeSize;
+	}
+	// Incremental matching: feed the input in chunks, and ask at any point whether what was fed so far matches.
+	// Only the current DFA state is kept, so memory does not grow with the input.
+	// Once the state is dead, the rest of the input is skipped.
+	public static class Matcher {
+		private final DFA dfa;
+		private int state;
+		private long position;
+		private CharsetDecoder decoder;
+		private CharBuffer decoded;
+
+		public Matcher(DFA dfa) {
+			this.dfa = dfa;
+			this.state = dfa.start;
+		}
+		public Matcher feed(CharSequence chars) {
+			int i = 0;
+			for (; i < chars.length() && !dfa.dead(state); i++)
+				state = dfa.step(state, chars.charAt(i));
+			Metrics.transitions.add(i);
+			position += chars.length();
+			return this;
+		}
+		public Matcher feed(char[] chars, int offset, int length) {
+			int i = offset;
+			for (; i < offset + length && !dfa.dead(state); i++)
+				state = dfa.step(state, chars[i]);
+			Metrics.transitions.add(i - offset);
+			position += length;
+			return this;
+		}
+		// Feed everything left in reader (stops reading once the state is dead)
+		public Matcher feed(Reader reader) throws IOException {
+			char[] buffer = new char[8192];
+			int length;
+			while (!dfa.dead(state) && (length = reader.read(buffer)) >= 0)
+				feed(buffer, 0, length);
+			return this;
+		}
+		// Decode and feed the bytes remaining in buffer as UTF-8.
+		// An incomplete char at the end is left in the buffer, to compact and refill as usual with channels.
+		public Matcher feed(ByteBuffer bytes) throws CharacterCodingException {
+			if (decoder == null) {
+				decoder = StandardCharsets.UTF_8.newDecoder();
+				decoded = CharBuffer.allocate(8192);
+			}
+			CoderResult result;
+			do {
+				decoded.clear();
+				result = decoder.decode(bytes, decoded, false);
+				if (result.isError())
+					result.throwException();
+				decoded.flip();
+				feed(decoded);
+			} while (result.isOverflow() && !dfa.dead(state));
+			return this;
+		}
+		// Does the input fed so far match?
+		public boolean matches() {
+			return dfa.accepts(state);
+		}
+		// Is there no way the input could still match, whatever comes next?
+		public boolean dead() {
+			return dfa.dead(state);
+		}
+		// Number of chars fed so far
+		public long position() {
+			return position;
+		}
+		public Matcher reset() {
+			state = dfa.start;
+			position = 0;
+			if (decoder != null)
+				decoder.reset();
+			return this;
+		}
+	}
+	// Where a match was found: text from start (inclusive) to end (exclusive)
+	public static class Span {
+		public final int start, end;
+		public Span(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof Span) && start == ((Span) o).start && end == ((Span) o).end;
+		}
+		@Override
+		public int hashCode() {
+			return 31 * start + end;
+		}
+		@Override
+		public String toString() {
+			return "[" + start + ", " + end + ")";
+		}
+	}
+	// Find matches anywhere in a text, without trying every start offset: the leftmost match, as long as it goes.
+	// The DFA of r is run forwards from every position at once, with one run per state, which keeps the leftmost
+	// position it was started from (runs in the same state go on alike, so the leftmost one is all that matters).
+	// Where no run is alive, the search skips to where the literal every match starts with occurs next.
+	// find stops once the run of the leftmost match dies, so it reads no more of the text than it needs.
+	// findAll cuts the text into windows where some run is alive, so that no match spans two windows. In each window
+	// that has a match, one backward pass finds, for every position, the end of the longest match starting there:
+	// the DFA of reverse(r) is run back from every position at once, again with one run per state, which keeps the
+	// farthest position it was started from. That takes time linear in the text for all the matches.
+	public static class Searcher {
+		private final DFA forward, reversed;
+		private final String prefix, factor;
+		private final Captures captures;
+
+		public Searcher(Node regex) {
+			forward = new DFA(regex);
+			reversed = new DFA(regex.accept(new Reverse()));
+			Literals literals = Literals.of(regex);
+			prefix = literals.prefix;
+			factor = literals.factor;
+			captures = new Captures(regex);
+		}
+		// The first match at or after from, or null if there is none
+		public Span find(CharSequence text, int from) {
+			int length = text.length();
+			// A required literal that is not there means no match at all
+			if (factor.length() > 0 && indexOf(text, factor, from) < 0)
+				return null;
+			Runs runs = new Runs();
+			// The leftmost match so far: runs that start after it are dropped, and no more are started
+			int start = -1, end = -1;
+			for (int i = from;; i++) {
+				if (runs.count == 0) {
+					if (start >= 0)
+						break;
+					// Outside any partial match, skip to where the prefix occurs next
+					if (prefix.length() > 0 && (i = indexOf(text, prefix, i)) < 0)
+						break;
+				}
+				if (start < 0)
+					runs.add(forward.start, i, i + 1);
+				for (int k = 0; k < runs.count; k++)
+					if (forward.accepts(runs.states[k])) {
+						// The leftmost run that matches here: it starts at or before the match so far
+						start = runs.positions[k];
+						end = i;
+						runs.count = k + 1;
+						break;
+					}
+				if (i == length)
+					break;
+				runs.step(forward, text.charAt(i), i + 2);
+			}
+			return (start < 0) ? null : new Span(start, end);
+		}
+		// The first match at or after from and where its groups matched (see Captures), or null if there is none
+		public Span[] groups(CharSequence text, int from) {
+			Span match = find(text, from);
+			return (match == null) ? null : captures.split(text, match);
+		}
+		// Every match, left to right, not overlapping
+		public List<Span> findAll(CharSequence text) {
+			ArrayList<Span> spans = new ArrayList<Span>();
+			int length = text.length();
+			if (factor.length() > 0 && indexOf(text, factor, 0) < 0)
+				return spans;
+			Runs runs = new Runs();
+			// The window the runs are in, and whether a match was seen in it
+			int window = 0;
+			boolean matched = false;
+			for (int i = 0;; i++) {
+				if (runs.count == 0) {
+					// The window ended at the last position a run was alive
+					if (matched)
+						matches(text, window, i - 1, spans);
+					matched = false;
+					if (prefix.length() > 0 && (i = indexOf(text, prefix, i)) < 0)
+						break;
+					window = i;
+				}
+				runs.add(forward.start, i, i + 1);
+				for (int k = 0; k < runs.count && !matched; k++)
+					matched = forward.accepts(runs.states[k]);
+				if (i == length) {
+					if (matched)
+						matches(text, window, length, spans);
+					break;
+				}
+				runs.step(forward, text.charAt(i), i + 2);
+			}
+			return spans;
+		}
+		// Add the matches in text[from, to], where no match goes past to, left to right
+		private void matches(CharSequence text, int from, int to, List<Span> spans) {
+			int[] longest = longest(text, from, to);
+			for (int start = from; start <= to; start++)
+				if (longest[start - from] >= 0) {
+					spans.add(new Span(start, longest[start - from]));
+					// After an empty match, move on by one char so as not to find it again
+					start = Math.max(start, longest[start - from] - 1);
+				}
+		}
+		// longest[p - from] is the end of the longest match starting at p and ending by to, or -1 if there is none
+		private int[] longest(CharSequence text, int from, int to) {
+			int[] longest = new int[to - from + 1];
+			// The runs, by decreasing end, so that of two runs in the same state, the farthest one is kept
+			Runs runs = new Runs();
+			for (int p = to;; p--) {
+				runs.add(reversed.start, p, p + 1);
+				longest[p - from] = -1;
+				for (int k = 0; k < runs.count; k++)
+					if (reversed.accepts(runs.states[k])) {
+						longest[p - from] = runs.positions[k];
+						break;
+					}
+				if (p == from)
+					break;
+				runs.step(reversed, text.charAt(p - 1), p);
+			}
+			return longest;
+		}
+		// Runs of a DFA started at different positions, in the order they were started, at most one per state:
+		// of two runs landing in the same state, the first one is kept (they go on alike from there).
+		// Each position has its own stamp, which marks the states taken there.
+		private static class Runs {
+			int[] states = new int[16], positions = new int[16];
+			int count;
+			private int[] taken = new int[16];
+			// Start a run in state at position, unless a run is in that state already
+			void add(int state, int position, int stamp) {
+				if (!take(state, stamp))
+					return;
+				if (count == states.length) {
+					states = Arrays.copyOf(states, 2 * count);
+					positions = Arrays.copyOf(positions, 2 * count);
+				}
+				states[count] = state;
+				positions[count++] = position;
+			}
+			private boolean take(int state, int stamp) {
+				if (state >= taken.length)
+					taken = Arrays.copyOf(taken, Math.max(state + 1, 2 * taken.length));
+				if (taken[state] == stamp)
+					return false;
+				taken[state] = stamp;
+				return true;
+			}
+			// Step every run over c, in place, and drop the ones that die
+			void step(DFA dfa, char c, int stamp) {
+				int kept = 0;
+				for (int k = 0; k < count; k++) {
+					int target = dfa.step(states[k], c);
+					if (!dfa.dead(target) && take(target, stamp)) {
+						states[kept] = target;
+						positions[kept++] = positions[k];
+					}
+				}
+				Metrics.transitions.add(count);
+				count = kept;
+			}
+		}
+		private static int indexOf(CharSequence text, String literal, int from) {
+			if (text instanceof String)
+				return ((String) text).indexOf(literal, from);
+			char first = literal.charAt(0);
+			int last = text.length() - literal.length();
+			for (int i = from; i <= last; i++) {
+				if (text.charAt(i) != first)
+					continue;
+				int j = 1;
+				while (j < literal.length() && text.charAt(i + j) == literal.charAt(j))
+					j++;
+				if (j == literal.length())
+					return i;
+			}
+			return -1;
+		}
+	}
+	// Where each capture Group of a regex matched, given where the whole regex matched.
+	// The match is cut top down, leftmost-longest: the factors of a Sequence are cut left to right, each one getting
+	// the longest text that leaves a match of the factors after it, an Or takes the first alternative that matches
+	// (the one with the lowest group number), and a Star gives its groups the last iteration, taken as long as possible.
+	// A cut is one pass of the factor's DFA forwards and one pass of the reverse of the rest backwards,
+	// so each factor costs time linear in the length of the match, and nothing backtracks.
+	public static class Captures {
+		public final int groups;
+		private final Node regex;
+		// The lowest group number in each subtree that has groups (subtrees without any are not split)
+		private final HashMap<Node, Integer> first = new HashMap<Node, Integer>();
+		// DFAs of the subtrees, and of their reverses
+		private final ConcurrentHashMap<Node, DFA> forward = new ConcurrentHashMap<Node, DFA>();
+		private final ConcurrentHashMap<Node, DFA> backward = new ConcurrentHashMap<Node, DFA>();
+
+		public Captures(Node regex) {
+			this.regex = regex;
+			int[] last = new int[1];
+			first(regex, last);
+			groups = last[0];
+		}
+		// Fill in first, and the highest group number in last[0]
+		private int first(Node node, int[] last) {
+			Integer known = first.get(node);
+			if (known != null)
+				return known;
+			int lowest = Integer.MAX_VALUE;
+			if (node instanceof Group) {
+				lowest = ((Group) node).index;
+				last[0] = Math.max(last[0], lowest);
+				lowest = Math.min(lowest, first(((Group) node).child, last));
+			} else if (node instanceof Star)
+				lowest = first(((Star) node).child, last);
+			else if (node instanceof Repeat)
+				lowest = first(((Repeat) node).child, last);
+			else if (node instanceof Sequence)
+				lowest = Math.min(first(((Sequence) node).sequenceChild.a, last), first(((Sequence) node).sequenceChild.b, last));
+			else if (node instanceof Or)
+				for (Node alternative : Or.alternatives(node))
+					lowest = Math.min(lowest, first(alternative, last));
+			else if (node instanceof And)
+				for (Node conjunct : And.conjuncts(node))
+					lowest = Math.min(lowest, first(conjunct, last));
+			else if (node instanceof Not)
+				// Its groups are counted, but never match anything: the text is what the child does not match
+				first(((Not) node).child, last);
+			if (lowest != Integer.MAX_VALUE)
+				first.put(node, lowest);
+			return lowest;
+		}
+		// The groups of a match of the whole text, or null if the text does not match
+		public Span[] match(CharSequence text) {
+			if (!ends(regex, text, 0, text.length())[text.length()])
+				return null;
+			return split(text, new Span(0, text.length()));
+		}
+		// The groups of a match: element 0 is the match itself, element i is group i, or null if it took no part in the match
+		public Span[] split(CharSequence text, Span match) {
+			int[] bounds = new int[2 * (groups + 1)];
+			Arrays.fill(bounds, -1);
+			split(regex, text, match.start, match.end, bounds);
+			Span[] spans = new Span[groups + 1];
+			spans[0] = match;
+			for (int i = 1; i <= groups; i++)
+				if (bounds[2 * i] >= 0)
+					spans[i] = new Span(bounds[2 * i], bounds[2 * i + 1]);
+			return spans;
+		}
+		// text[start, end) matches node, find out how its groups match
+		private void split(Node node, CharSequence text, int start, int end, int[] bounds) {
+			if (!first.containsKey(node))
+				return;
+			if (node instanceof Group) {
+				Group group = (Group) node;
+				bounds[2 * group.index] = start;
+				bounds[2 * group.index + 1] = end;
+				split(group.child, text, start, end, bounds);
+			} else if (node instanceof Sequence) {
+				// Cut the factors left to right (not the halves of the tree seq builds), each one taking the
+				// longest text that leaves a match of the ones after it
+				ArrayList<Node> factors = new ArrayList<Node>();
+				factors(node, factors);
+				int n = factors.size();
+				// rests[i] is the sequence of the factors after factor i
+				Node[] rests = new Node[n];
+				rests[n - 1] = EmptyString.getInstance();
+				for (int i = n - 2; i >= 0; i--)
+					rests[i] = Sequence.getInstance(factors.get(i + 1), rests[i + 1]);
+				// No need to cut after the last factor with groups
+				int last = n - 1;
+				while (!first.containsKey(factors.get(last)))
+					last--;
+				for (int i = 0; i <= last; i++) {
+					Node factor = factors.get(i);
+					int cut = end;
+					if (i < n - 1) {
+						boolean[] left = ends(factor, text, start, end), right = starts(rests[i], text, start, end);
+						while (!left[cut - start] || !right[cut - start])
+							cut--;
+					}
+					// Left first, so that a group repeated on the right (as in (a)+) reports its last match
+					split(factor, text, start, cut, bounds);
+					start = cut;
+				}
+			} else if (node instanceof Or) {
+				ArrayList<Node> alternatives = Or.alternatives(node);
+				// Alternatives without groups sort last
+				alternatives.sort((x, y) -> Integer.compare(firstOf(x), firstOf(y)));
+				for (Node alternative : alternatives)
+					if (ends(alternative, text, start, end)[end - start]) {
+						split(alternative, text, start, end, bounds);
+						return;
+					}
+			} else if (node instanceof And) {
+				// Every conjunct matches all of the text
+				for (Node conjunct : And.conjuncts(node))
+					split(conjunct, text, start, end, bounds);
+			} else if (node instanceof Star && end > start) {
+				Node child = ((Star) node).child;
+				boolean[] left = ends(node, text, start, end), right = starts(child, text, start, end);
+				int cut = start;
+				while (!left[cut - start] || !right[cut - start])
+					cut++;
+				split(child, text, cut, end, bounds);
+			} else if (node instanceof Repeat && (end > start || ((Repeat) node).min > 0)) {
+				// The last copy, as for a Star, after the fewest chars that the other copies can match
+				Node child = ((Repeat) node).child;
+				boolean[] left = ends(((Repeat) node).rest(), text, start, end), right = starts(child, text, start, end);
+				int cut = start;
+				while (!left[cut - start] || !right[cut - start])
+					cut++;
+				split(child, text, cut, end, bounds);
+			}
+		}
+		// The factors of a Sequence, left to right
+		private static void factors(Node node, ArrayList<Node> factors) {
+			if (node instanceof Sequence) {
+				factors(((Sequence) node).sequenceChild.a, factors);
+				factors(((Sequence) node).sequenceChild.b, factors);
+			} else
+				factors.add(node);
+		}
+		private int firstOf(Node node) {
+			Integer lowest = first.get(node);
+			return (lowest == null) ? Integer.MAX_VALUE : lowest;
+		}
+		// matched[i - start] tells whether text[start, i) matches node
+		private boolean[] ends(Node node, CharSequence text, int start, int end) {
+			DFA dfa = forward.computeIfAbsent(node, DFA::new);
+			boolean[] matched = new boolean[end - start + 1];
+			int state = dfa.start;
+			matched[0] = dfa.accepts(state);
+			int i = start;
+			for (; i < end && !dfa.dead(state); i++) {
+				state = dfa.step(state, text.charAt(i));
+				matched[i + 1 - start] = dfa.accepts(state);
+			}
+			Metrics.transitions.add(i - start);
+			return matched;
+		}
+		// matched[i - start] tells whether text[i, end) matches node
+		private boolean[] starts(Node node, CharSequence text, int start, int end) {
+			DFA dfa = backward.computeIfAbsent(node, n -> new DFA(n.accept(new Reverse())));
+			boolean[] matched = new boolean[end - start + 1];
+			int state = dfa.start;
+			matched[end - start] = dfa.accepts(state);
+			int i = end - 1;
+			for (; i >= start && !dfa.dead(state); i--) {
+				state = dfa.step(state, text.charAt(i));
+				matched[i - start] = dfa.accepts(state);
+			}
+			Metrics.transitions.add(end - 1 - i);
+			return matched;
+		}
+	}
+	public static Searcher searcher(Node regex) {
+		return new Searcher(regex);
+	}
+	public static Batch batch(Node regex) {
+		return new Batch(regex);
+	}
+	// Compile a regex into a lazy DFA, to match many strings against the same pattern
+	public static DFA compile(Node regex) {
+		long then = System.nanoTime();
+		DFA dfa = new DFA(regex);
+		Metrics.compiled("lazy DFA", regex, dfa.size(), System.nanoTime() - then);
+		return dfa;
+	}
+	// Compile a regex into a lazy DFA that caches at most about budget bytes of states and transitions
+	public static BoundedDFA compile(Node regex, long budget) {
+		return new BoundedDFA(regex, budget);
+	}
+	// Recently compiled patterns, so the same pattern text is only parsed and compiled once
+	private static final LRUCache<String, DFA> compiled = new LRUCache<String, DFA>(256);
+	// Parse and compile a pattern, or reuse the DFA compiled for it earlier
+	public static DFA compile(String pattern) {
+		DFA dfa;
+		synchronized (compiled) {
+			dfa = compiled.get(pattern);
+		}
+		if (dfa == null) {
+			// Parsing is part of compiling here
+			long then = System.nanoTime();
+			Node regex = parse(pattern);
+			dfa = new DFA(regex);
+			Metrics.compiled("lazy DFA", regex, dfa.size(), System.nanoTime() - then);
+			synchronized (compiled) {
+				compiled.put(pattern, dfa);
+			}
+		}
+		return dfa;
+	}
+	// A map that forgets its least recently used entry once it holds more than capacity entries
+	public static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		public LRUCache(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+	// Parse a regex written the usual way:
+	// ab, a|b, a&b (both), ~a (not a), a*, a+, a?, a{n}, a{n,}, a{n,m}, (a), (?:a), [abc], [a-z], [^a-z], . (any char but newline), and escapes such as \n, \u00e9, \d, \w, \s, \*
+	// (a) is a capture Group, (?:a) only groups.
+	public static class Parser {
+		private final String pattern;
+		private int position;
+		// Capture groups opened so far
+		private int groups;
+		public Parser(String pattern) {
+			this.pattern = pattern;
+		}
+		public Node parse() {
+			Node node = alternation();
+			if (position < pattern.length())
+				throw error("Unmatched )");
+			return node;
+		}
+		// a|b|...
+		private Node alternation() {
+			ArrayList<Node> alternatives = new ArrayList<Node>();
+			alternatives.add(intersection());
+			while (more() && peek() == '|') {
+				position++;
+				alternatives.add(intersection());
+			}
+			return or(alternatives.toArray(new Node[alternatives.size()]));
+		}
+		// a&b&..., which binds tighter than | and looser than a sequence
+		private Node intersection() {
+			Node node = sequence();
+			if (!more() || peek() != '&')
+				return node;
+			ArrayList<Node> conjuncts = new ArrayList<Node>();
+			conjuncts.add(node);
+			while (more() && peek() == '&') {
+				position++;
+				conjuncts.add(sequence());
+			}
+			return And.of(conjuncts);
+		}
+		// abc...
+		private Node sequence() {
+			ArrayList<Node> items = new ArrayList<Node>();
+			// Runs of plain chars make one Literal
+			StringBuilder literal = new StringBuilder();
+			while (more() && peek() != '|' && peek() != '&' && peek() != ')') {
+				Node item = repeat();
+				if (item instanceof Symbol)
+					literal.append(((Symbol) item).symbol);
+				else {
+					if (literal.length() > 0)
+						items.add(Literal.getInstance(literal.toString()));
+					literal.setLength(0);
+					items.add(item);
+				}
+			}
+			if (literal.length() > 0)
+				items.add(Literal.getInstance(literal.toString()));
+			return seq(items.toArray(new Node[items.size()]));
+		}
+		// a*, a+, a?, a{n}, a{n,}, a{n,m}, and ~a (which takes in the repeat: ~a* is ~(a*))
+		private Node repeat() {
+			if (more() && peek() == '~') {
+				position++;
+				if (!more() || peek() == '|' || peek() == '&' || peek() == ')')
+					throw error("Nothing to negate");
+				return Not.getInstance(repeat());
+			}
+			Node node = atom();
+			int[] counts;
+			while (more()) {
+				if (peek() == '*')
+					node = Star.getInstance(node);
+				else if (peek() == '+')
+					node = Sequence.getInstance(node, Star.getInstance(node));
+				else if (peek() == '?')
+					node = Or.getInstance(node, EmptyString.getInstance());
+				else if (peek() == '{' && (counts = counts()) != null) {
+					node = Repeat.getInstance(node, counts[0], counts[1]);
+					position = counts[2];
+					continue;
+				} else
+					break;
+				position++;
+			}
+			return node;
+		}
+		// The counts of a {n}, {n,} or {n,m} at position, and the position after it,
+		// or null if the { does not start one (and so is a plain {)
+		private int[] counts() {
+			int i = position + 1, min = 0, max;
+			int digits = i;
+			while (i < pattern.length() && Character.isDigit(pattern.charAt(i)))
+				min = count(min, pattern.charAt(i++));
+			if (i == digits || i == pattern.length())
+				return null;
+			if (pattern.charAt(i) == '}')
+				max = min;
+			else if (pattern.charAt(i) == ',') {
+				digits = ++i;
+				max = 0;
+				while (i < pattern.length() && Character.isDigit(pattern.charAt(i)))
+					max = count(max, pattern.charAt(i++));
+				if (i == digits)
+					max = Repeat.UNBOUNDED;
+				if (i == pattern.length() || pattern.charAt(i) != '}')
+					return null;
+			} else
+				return null;
+			if (max != Repeat.UNBOUNDED && max < min)
+				throw error("Bad repeat count");
+			return new int[] { min, max, i + 1 };
+		}
+		private int count(int count, char digit) {
+			count = 10 * count + digit - '0';
+			if (count > Repeat.MAX_COUNT)
+				throw error("Repeat count over " + Repeat.MAX_COUNT);
+			return count;
+		}
+		private Node atom() {
+			char c = next();
+			switch (c) {
+			case '(':
+				int index = 0;
+				if (pattern.startsWith("?:", position))
+					position += 2;
+				else
+					index = ++groups;
+				Node node = alternation();
+				if (!more() || next() != ')')
+					throw error("Missing )");
+				return (index == 0) ? node : Group.getInstance(index, node);
+			case '[':
+				return CharClass.getInstance(charClass());
+			case '.':
+				return CharClass.getInstance(new Ranges('\n', '\n').complement());
+			case '\\':
+				Ranges ranges = predefined();
+				if (ranges != null)
+					return CharClass.getInstance(ranges);
+				return Symbol.getInstance(escape());
+			case '*':
+			case '+':
+			case '?':
+				position--;
+				throw error("Nothing to repeat");
+			case '{':
+				// A count with nothing to repeat is an error, any other { is a plain char
+				position--;
+				if (counts() != null)
+					throw error("Nothing to repeat");
+				position++;
+				return Symbol.getInstance(c);
+			default:
+				return Symbol.getInstance(c);
+			}
+		}
+		// What follows [ up to and including ]
+		private Ranges charClass() {
+			boolean negate = more() && peek() == '^';
+			if (negate)
+				position++;
+			Ranges ranges = new Ranges();
+			boolean first = true;
+			while (true) {
+				if (!more())
+					throw error("Missing ]");
+				char lo = next();
+				// ] right after [ or [^ is a plain ]
+				if (lo == ']' && !first)
+					break;
+				first = false;
+				if (lo == '\\') {
+					Ranges set = predefined();
+					if (set != null) {
+						ranges = ranges.union(set);
+						continue;
+					}
+					lo = escape();
+				}
+				char hi = lo;
+				if (position + 1 < pattern.length() && peek() == '-' && pattern.charAt(position + 1) != ']') {
+					position++;
+					hi = next();
+					if (hi == '\\')
+						hi = escape();
+					if (hi < lo)
+						throw error("Bad range");
+				}
+				ranges = ranges.union(new Ranges(lo, hi));
+			}
+			return negate ? ranges.complement() : ranges;
+		}
+		// \d, \w, \s and their complements \D, \W, \S (after the \), or null for any other escape
+		private Ranges predefined() {
+			if (!more())
+				throw error("Trailing \\");
+			Ranges ranges;
+			switch (Character.toLowerCase(peek())) {
+			case 'd':
+				ranges = new Ranges('0', '9');
+				break;
+			case 'w':
+				ranges = new Ranges('a', 'z', 'A', 'Z', '0', '9', '_', '_');
+				break;
+			case 's':
+				ranges = new Ranges(' ', ' ', '\t', '\r');
+				break;
+			default:
+				return null;
+			}
+			position++;
+			return Character.isUpperCase(pattern.charAt(position - 1)) ? ranges.complement() : ranges;
+		}
+		// The char an escape stands for (after the \)
+		private char escape() {
+			if (!more())
+				throw error("Trailing \\");
+			char c = next();
+			switch (c) {
+			case 'n':
+				return '\n';
+			case 't':
+				return '\t';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case '0':
+				return '\0';
+			case 'u':
+				if (position + 4 > pattern.length())
+					throw error("Bad \\u escape");
+				try {
+					c = (char) Integer.parseInt(pattern.substring(position, position + 4), 16);
+				} catch (NumberFormatException e) {
+					throw error("Bad \\u escape");
+				}
+				position += 4;
+				return c;
+			default:
+				// Anything else (such as \* or \\) stands for itself
+				return c;
+			}
+		}
+		private boolean more() {
+			return position < pattern.length();
+		}
+		private char peek() {
+			return pattern.charAt(position);
+		}
+		private char next() {
+			return pattern.charAt(position++);
+		}
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at index " + position + " in " + pattern);
+		}
+	}
+	public static Node parse(String pattern) {
+		return new Parser(pattern).parse();
+	}
+	// Use derivatives to match regular expressions
+	// (To see the derivatives, trace a compiled DFA with a PrintTracer)
+	public static boolean match(Node regex, String string) {
+		// Just compute the derivative with respect to the first character, then the second, then the third and so on.
+		for (int i = 0; i < string.length() && regex != EmptySet.getInstance(); i++) {
+			// regex should match what it used to match, sans first character c
+			regex = Derivative.derive(regex, string.charAt(i));
+		}
+		// If the final language contains the empty string, then the original string was in the original language.
+		// Does the regex match the empty string?
+		return regex.nullable;
+	}
+	// Match String s literally	
+	public static Node fromString(String s) {
+		return Literal.getInstance(s);
+	}
+	// Create a nested sequence from an array of nodes
+	// The tree is balanced, so it is only log(n) deep
+	public static Node seq(Node...s) {
+		return seq(s, 0, s.length);
+	}
+	private static Node seq(Node[] s, int from, int to) {
+		if (from == to)
+			return EmptyString.getInstance();
+		if (to - from == 1)
+			return s[from];
+		int middle = (from + to) >>> 1;
+		return Sequence.getInstance(seq(s, from, middle), seq(s, middle, to));
+	}
+	// Match any of the nodes
+	public static Node or(Node...s) {
+		return Or.of(Arrays.asList(s));
+	}
+	// java Regex pattern string... tells which strings match the pattern
+	public static void main(String[] args) {
+		if (args.length > 0) {
+			DFA dfa = compile(args[0]);
+			for (int i = 1; i < args.length; i++)
+				System.out.println(args[i] + ": " + dfa.matches(args[i]));
+			return;
+		}
+		String s = "H";
+		s += "ello";
+		if("Hello" == (s)) {
+			System.out.println("WTF");
+		}
+                System.out.println("Computing Regular Expression...");
+		// Does bob match bob? Print the derivatives on the way:
+		// bob
+		// ob
+		// b
+		// emptystring
+		DFA dfa = compile(fromString("bob")).trace(new PrintTracer(System.out));
+		System.out.println("Match: " + dfa.matches("bob"));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package bench;
+
+import java.util.function.Predicate;
+
+// What the benchmarks need from the regex engine.
+// Regex is in the default package, which code in a package cannot name (and JMH does not allow benchmarks
+// in the default package), so RegexEngine implements this on the other side and the benchmark loads it by name.
+public interface Engine {
+	// A new lazy DFA, with no transitions built yet
+	Predicate<CharSequence> compile(String pattern);
+	// A lazy DFA with every state built
+	Predicate<CharSequence> explored(String pattern);
+	// The minimal Table
+	Predicate<CharSequence> table(String pattern);
+	// Plain derivatives, with no DFA at all (Regex.match)
+	Predicate<CharSequence> derivatives(String pattern);
+}
@@ -0,0 +1,135 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmarks for the regex engine.
+// Every benchmark runs for each shape of pattern (the kind of node that dominates it) and each input size.
+// The input always matches the pattern, so the whole input is read.
+//
+// Build with JMH's annotation processor, from the repository root:
+//   javac -cp jmh-core.jar:jmh-generator-annprocess.jar:jopt-simple.jar:commons-math3.jar -d out *.java bench/*.java
+//   java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar org.openjdk.jmh.Main RegexBenchmark
+// Add -prof gc for the allocation rate of each benchmark.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegexBenchmark {
+	public enum Shape {
+		// Mostly Sequences of Symbols
+		LITERAL("(The quick brown fox jumps over the lazy dog\\. )*") {
+			@Override
+			String record(Random random) {
+				return "The quick brown fox jumps over the lazy dog. ";
+			}
+		},
+		// A wide Or
+		ALTERNATION("((error|warning|notice|debug|trace|fatal|info|alert|panic|critical|emergency|verbose) )*") {
+			@Override
+			String record(Random random) {
+				return WORDS[random.nextInt(WORDS.length)] + " ";
+			}
+		},
+		// Nested Stars, which have the most derivatives to build
+		STAR("((a|b)*c(a*b*)*d)*") {
+			@Override
+			String record(Random random) {
+				StringBuilder builder = new StringBuilder();
+				for (int i = random.nextInt(8); i > 0; i--)
+					builder.append(random.nextBoolean() ? 'a' : 'b');
+				builder.append('c');
+				for (int i = random.nextInt(8); i > 0; i--)
+					builder.append(random.nextBoolean() ? 'a' : 'b');
+				return builder.append('d').toString();
+			}
+		},
+		// CharClasses, with many char classes in the Alphabet
+		CLASS("([a-zA-Z_][a-zA-Z0-9_]*[ \\t]*[-+*/=][ \\t]*[0-9]+(\\.[0-9]+)?;\\s*)*") {
+			@Override
+			String record(Random random) {
+				return "x" + random.nextInt(100) + " = " + random.nextInt(1000) + "." + random.nextInt(10) + ";\n";
+			}
+		};
+
+		private static final String[] WORDS = { "error", "warning", "notice", "debug", "trace", "fatal", "info", "alert",
+				"panic", "critical", "emergency", "verbose" };
+		final String pattern;
+		Shape(String pattern) {
+			this.pattern = pattern;
+		}
+		// One repetition of the pattern's starred group
+		abstract String record(Random random);
+		// Whole records, up to size chars
+		String input(int size) {
+			Random random = new Random(42);
+			StringBuilder builder = new StringBuilder(size);
+			while (true) {
+				String record = record(random);
+				if (builder.length() + record.length() > size)
+					return builder.toString();
+				builder.append(record);
+			}
+		}
+	}
+
+	@Param
+	Shape shape;
+	@Param({ "64", "4096", "262144" })
+	int size;
+
+	private Engine engine;
+	private String input;
+	private Predicate<CharSequence> explored, table, derivatives;
+
+	@Setup
+	public void setup() throws ReflectiveOperationException {
+		engine = (Engine) Class.forName("RegexEngine").getDeclaredConstructor().newInstance();
+		input = shape.input(size);
+		explored = engine.explored(shape.pattern);
+		table = engine.table(shape.pattern);
+		derivatives = engine.derivatives(shape.pattern);
+		if (!explored.test(input) || !table.test(input) || !derivatives.test(input))
+			throw new IllegalStateException(shape + " does not match its input");
+	}
+	// Parse and build a lazy DFA (nodes stay interned from earlier iterations, as they would in a long running program)
+	@Benchmark
+	public Predicate<CharSequence> coldCompile() {
+		return engine.compile(shape.pattern);
+	}
+	// Compile and match with a new DFA, so every transition taken is a cache miss that gets derived
+	@Benchmark
+	public boolean coldMatch() {
+		return engine.compile(shape.pattern).test(input);
+	}
+	// Match with a DFA whose transitions are all cached
+	@Benchmark
+	public boolean warmMatch() {
+		return explored.test(input);
+	}
+	// Match with the minimal table
+	@Benchmark
+	public boolean tableMatch() {
+		return table.test(input);
+	}
+	// Derive the regex char by char, with no transition cache at all
+	@Benchmark
+	public boolean derivativeMatch() {
+		return derivatives.test(input);
+	}
+}
@@ -0,0 +1,27 @@
+import java.util.function.Predicate;
+
+// The regex engine, as seen by the benchmarks (see bench.Engine)
+public class RegexEngine implements bench.Engine {
+	@Override
+	public Predicate<CharSequence> compile(String pattern) {
+		return Regex.compile(Regex.parse(pattern))::matches;
+	}
+	@Override
+	public Predicate<CharSequence> explored(String pattern) {
+		return Regex.compile(Regex.parse(pattern)).explore()::matches;
+	}
+	@Override
+	public Predicate<CharSequence> table(String pattern) {
+		return Regex.Table.of(Regex.compile(Regex.parse(pattern)))::matches;
+	}
+	@Override
+	public Predicate<CharSequence> derivatives(String pattern) {
+		final Regex.Node regex = Regex.parse(pattern);
+		return new Predicate<CharSequence>() {
+			@Override
+			public boolean test(CharSequence string) {
+				return Regex.match(regex, string.toString());
+			}
+		};
+	}
+}